@@ -0,0 +1,123 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Raw view of the bits of guava bloom filters, so filters can be compared and patched. A node's filters (one per
+ * depth, all with the same geometry) are handled as one: their bits one after the other.
+ */
+public class BloomBits {
+    /**
+     * Immutable copy of some filters at some point in time.
+     */
+    public record Snapshot(byte strategy, int numHashFunctions, int levels, long[] data) {
+        public boolean sameGeometry(Snapshot other) {
+            return this.strategy == other.strategy && this.numHashFunctions == other.numHashFunctions
+                    && this.levels == other.levels && this.data.length == other.data.length;
+        }
+
+        public List<BloomFilter<String>> toBloomFilters() {
+            int levelLongs = this.data.length / this.levels;
+            List<BloomFilter<String>> filters = new ArrayList<>(this.levels);
+            for (int i = 0; i < this.levels; ++i) {
+                filters.add(BloomBits.fromLongs(this.strategy, this.numHashFunctions,
+                        Arrays.copyOfRange(this.data, i * levelLongs, (i + 1) * levelLongs)));
+            }
+            return filters;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the filters don't all have the same geometry
+     */
+    public static Snapshot snapshot(List<BloomFilter<String>> bloomFilters) {
+        Snapshot first = null;
+        long[] data = null;
+        for (int i = 0; i < bloomFilters.size(); ++i) {
+            Snapshot level = BloomBits.snapshot(bloomFilters.get(i));
+            if (first == null) {
+                first = level;
+                data = new long[level.data.length * bloomFilters.size()];
+            } else if (!first.sameGeometry(level)) {
+                throw new IllegalArgumentException("Bloom filters of different geometries");
+            }
+            System.arraycopy(level.data, 0, data, i * level.data.length, level.data.length);
+        }
+        if (first == null) throw new IllegalArgumentException("No bloom filters");
+        return new Snapshot(first.strategy, first.numHashFunctions, bloomFilters.size(), data);
+    }
+
+    private static Snapshot snapshot(BloomFilter<String> bloomFilter) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bloomFilter.writeTo(bos);
+            // strategy (1 byte), hash functions (1 byte), number of longs (4 bytes), longs
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+            byte strategy = in.readByte();
+            int numHashFunctions = in.readUnsignedByte();
+            long[] data = new long[in.readInt()];
+            for (int i = 0; i < data.length; ++i)
+                data[i] = in.readLong();
+            return new Snapshot(strategy, numHashFunctions, 1, data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams
+        }
+    }
+
+    public static BloomFilter<String> fromLongs(byte strategy, int numHashFunctions, long[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(6 + data.length * Long.BYTES);
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(strategy);
+            out.writeByte(numHashFunctions);
+            out.writeInt(data.length);
+            for (long l : data)
+                out.writeLong(l);
+            return BloomFilter.readFrom(new ByteArrayInputStream(bos.toByteArray()),
+                    Funnels.stringFunnel(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Indexes (ascending) of the bits that differ between two filters with the same geometry.
+     */
+    public static int[] diff(Snapshot from, Snapshot to) {
+        int[] flipped = new int[16];
+        int n = 0;
+        for (int i = 0; i < to.data.length; ++i) {
+            long changed = from.data[i] ^ to.data[i];
+            while (changed != 0) {
+                if (n == flipped.length) flipped = Arrays.copyOf(flipped, n * 2);
+                flipped[n++] = i * Long.SIZE + Long.numberOfTrailingZeros(changed);
+                changed &= changed - 1;
+            }
+        }
+        return Arrays.copyOf(flipped, n);
+    }
+
+    public static List<BloomFilter<String>> flip(List<BloomFilter<String>> bloomFilters, int[] flipped) {
+        Snapshot snapshot = BloomBits.snapshot(bloomFilters);
+        long[] data = snapshot.data;
+        for (int bit : flipped) {
+            if (bit < 0 || bit >= data.length * Long.SIZE) throw new IllegalArgumentException("Bit out of range: " + bit);
+            data[bit / Long.SIZE] ^= 1L << (bit % Long.SIZE);
+        }
+        return snapshot.toBloomFilters();
+    }
+
+    /**
+     * A sparse delta costs a few bytes per flipped bit: only worth it while it is well below the size of the bits.
+     */
+    public static boolean worthSparse(int nFlipped, Snapshot snapshot) {
+        return nFlipped * 4 < snapshot.data.length * Long.BYTES;
+    }
+}
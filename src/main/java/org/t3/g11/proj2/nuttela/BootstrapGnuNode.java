@@ -1,20 +1,18 @@
 package org.t3.g11.proj2.nuttela;
 
-import org.t3.g11.proj2.nuttela.message.QueryHitMessage;
-import org.t3.g11.proj2.nuttela.message.QueryMessage;
-
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashSet;
 
+/**
+ * Where nodes go to get their first hosts (BOOTSTRAP). It never becomes anyone's neighbor (or ultrapeer), so it
+ * doesn't relay queries: it only hands out the hosts it hears of.
+ */
 public class BootstrapGnuNode extends GnuNode {
     public static final int BOOTSTRAPID = 0;
     public static final InetSocketAddress NODEENDPOINT = new InetSocketAddress("localhost", 8080);
-    public static final int MAX_NEIGH = 50;
 
     public BootstrapGnuNode() throws IOException {
-        super(BootstrapGnuNode.BOOTSTRAPID, BootstrapGnuNode.NODEENDPOINT,
-                BootstrapGnuNode.MAX_NEIGH, 1);
+        super(BootstrapGnuNode.BOOTSTRAPID, BootstrapGnuNode.NODEENDPOINT, 0, 1);
     }
 
     @Override
@@ -23,24 +21,17 @@ public class BootstrapGnuNode extends GnuNode {
     }
 
     @Override
-    protected void bootstrap() {
-        // do nothing
+    protected void checkRole() {
+        // nothing to change
     }
 
     @Override
-    protected void handleQuery(QueryMessage reqMsg) {
-        // never gets a hit => just forward it if needed
-        if (!this.sentTo.containsKey(reqMsg.getGuid()))
-            this.sentTo.put(reqMsg.getGuid(), new HashSet<>());
-        this.sentTo.get(reqMsg.getGuid()).add(reqMsg.getId());
-        if (reqMsg.decreaseTtl() > 0) {
-            reqMsg.setAddr(this.addr); // update source address
-            this.query(reqMsg);
-        }
+    protected boolean takesNeighbors() {
+        return false;
     }
 
     @Override
-    protected void handleQueryHit(QueryHitMessage reqMsg) {
+    protected void bootstrap() {
         // do nothing
     }
 }
@@ -0,0 +1,57 @@
+package org.t3.g11.proj2.nuttela;
+
+/**
+ * Capacity a node advertises (Gia): roughly how many relayed queries per second it can get through. It comes from
+ * how long handling a query takes here, how many of them we handle at once (bounded by the cores) and how slow our
+ * links are, all smoothed so the value follows the machine and not single samples.
+ * <p>
+ * Capacities are rounded down to a power of two: neighbors compare them and weigh our queries with them, so small
+ * changes aren't worth passing on (and only happen to the ones near a boundary).
+ * <p>
+ * Until MIN_SAMPLES queries have been handled the estimate is only a guess from the assumed query time, so it is not
+ * {@link #isMeasured() measured}: it shapes the topology but doesn't make a node an ultrapeer.
+ */
+public class CapacityEstimator {
+    public static final int MAX_CAPACITY = 1 << 14;
+    public static final double DEFAULT_QUERY_MILLIS = 10; // assumed until we have handled some queries
+    public static final double REF_RTT_MILLIS = 50; // links slower than this scale the capacity down
+    public static final int MIN_SAMPLES = 32; // handled queries before the estimate counts as measured
+    private static final double ALPHA = 0.2; // weight of a new sample
+
+    private final int parallelism;
+    private double queryNanos = -1; // smoothed time to handle one query (-1 => none yet)
+    private double rttNanos = -1; // smoothed ping round trip to our neighbors (-1 => none yet)
+    private int samples = 0;
+
+    public CapacityEstimator(int depth) {
+        this.parallelism = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public synchronized void recordQuery(long nanos) {
+        this.queryNanos = CapacityEstimator.smooth(this.queryNanos, nanos);
+        if (this.samples < CapacityEstimator.MIN_SAMPLES) ++this.samples;
+    }
+
+    public synchronized boolean isMeasured() {
+        return this.samples >= CapacityEstimator.MIN_SAMPLES;
+    }
+
+    public synchronized void recordRtt(long nanos) {
+        this.rttNanos = CapacityEstimator.smooth(this.rttNanos, nanos);
+    }
+
+    public synchronized int estimate() {
+        double queryMillis = this.queryNanos < 0 ? CapacityEstimator.DEFAULT_QUERY_MILLIS : this.queryNanos / 1e6;
+        double throughput = 1000.0 / Math.max(queryMillis, 0.01) * this.parallelism;
+        double rttMillis = this.rttNanos / 1e6;
+        if (rttMillis > CapacityEstimator.REF_RTT_MILLIS) throughput *= CapacityEstimator.REF_RTT_MILLIS / rttMillis;
+
+        long capacity = Math.max(1, Math.min(CapacityEstimator.MAX_CAPACITY, Math.round(throughput)));
+        return Integer.highestOneBit((int) capacity);
+    }
+
+    private static double smooth(double current, long sample) {
+        if (current < 0) return sample;
+        return current + CapacityEstimator.ALPHA * (sample - current);
+    }
+}
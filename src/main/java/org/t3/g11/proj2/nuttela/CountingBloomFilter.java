@@ -0,0 +1,138 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Bloom filter with a counter per bit, so entries can be taken out again. Neighbors never see the counters: they get
+ * a plain guava filter with the bits whose counters aren't zero. Bits are picked the way guava's filters pick them
+ * (MURMUR128_MITZ_64 over the UTF-8 string), so both agree on what they contain and can be merged.
+ */
+public class CountingBloomFilter {
+    private static final byte MURMUR128_MITZ_64 = 1; // guava's ordinal for that strategy
+
+    private final byte strategy;
+    private final int numHashFunctions;
+    private final long[] bits;
+    private final int[] counts; // one per bit
+    private int bitCount = 0; // bits set
+    private BloomFilter<String> view = null; // guava copy of the bits, kept until they change
+
+    /**
+     * An empty filter with the geometry of the given (guava) one.
+     */
+    public CountingBloomFilter(BloomFilter<String> geometry) {
+        this(geometry, 1);
+    }
+
+    /**
+     * An empty filter like the given one but with scale times the bits (same number of hash functions).
+     */
+    public CountingBloomFilter(BloomFilter<String> geometry, int scale) {
+        BloomBits.Snapshot snapshot = BloomBits.snapshot(List.of(geometry));
+        if (snapshot.strategy() != CountingBloomFilter.MURMUR128_MITZ_64)
+            throw new IllegalArgumentException("Unsupported bloom filter strategy " + snapshot.strategy());
+        this.strategy = snapshot.strategy();
+        this.numHashFunctions = snapshot.numHashFunctions();
+        this.bits = new long[snapshot.data().length * scale];
+        this.counts = new int[this.bits.length * Long.SIZE];
+    }
+
+    /**
+     * @return true if some bit was set (the guava filter changed)
+     */
+    public synchronized boolean add(String entry) {
+        boolean changed = false;
+        for (int bit : this.bitsOf(entry)) {
+            if (this.counts[bit]++ == 0) {
+                this.bits[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+                ++this.bitCount;
+                changed = true;
+            }
+        }
+        if (changed) this.view = null;
+        return changed;
+    }
+
+    /**
+     * Takes out an entry that was added before (taking out one that wasn't would take bits from others).
+     *
+     * @return true if some bit was cleared (the guava filter changed)
+     */
+    public synchronized boolean remove(String entry) {
+        int[] entryBits = this.bitsOf(entry);
+        for (int bit : entryBits) {
+            if (this.counts[bit] == 0) return false; // not in here
+        }
+
+        boolean changed = false;
+        for (int bit : entryBits) {
+            if (--this.counts[bit] == 0) {
+                this.bits[bit / Long.SIZE] &= ~(1L << (bit % Long.SIZE));
+                --this.bitCount;
+                changed = true;
+            }
+        }
+        if (changed) this.view = null;
+        return changed;
+    }
+
+    public synchronized boolean mightContain(String entry) {
+        for (int bit : this.bitsOf(entry)) {
+            if (this.counts[bit] == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Chance of a false positive with the bits set now (same estimate as guava's).
+     */
+    public synchronized double expectedFpp() {
+        return Math.pow((double) this.bitCount / this.counts.length, this.numHashFunctions);
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.bitCount == 0;
+    }
+
+    /**
+     * ORs our bits into data, a filter with the same hash functions and scale times fewer bits. The bit of an entry
+     * is its hash modulo the size, and (h % (scale * m)) % m == h % m: the result is what that filter would have
+     * with our entries.
+     */
+    synchronized void foldInto(long[] data) {
+        for (int i = 0; i < this.bits.length; ++i)
+            data[i % data.length] |= this.bits[i];
+    }
+
+    /**
+     * The plain filter we advertise (don't change it: it is shared until our bits change).
+     */
+    public synchronized BloomFilter<String> toBloomFilter() {
+        if (this.view == null)
+            this.view = BloomBits.fromLongs(this.strategy, this.numHashFunctions, this.bits.clone());
+        return this.view;
+    }
+
+    private int[] bitsOf(String entry) {
+        // same as guava: two 64 bit halves of the 128 bit murmur3 hash (little endian), combined k times
+        ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashString(entry, StandardCharsets.UTF_8).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long hash1 = hash.getLong(0);
+        long hash2 = hash.getLong(8);
+        long bitSize = (long) this.bits.length * Long.SIZE;
+
+        int[] entryBits = new int[this.numHashFunctions];
+        long combinedHash = hash1;
+        for (int i = 0; i < this.numHashFunctions; ++i) {
+            entryBits[i] = (int) ((combinedHash & Long.MAX_VALUE) % bitSize);
+            combinedHash += hash2;
+        }
+        return entryBits;
+    }
+}
@@ -0,0 +1,10 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * A node of the DHT ring: its position (the node id) and where to reach it.
+ */
+public record DhtPeer(int id, InetSocketAddress address) implements Serializable {
+}
@@ -0,0 +1,96 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.message.query.QueryType;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+
+/**
+ * Overlay settings that can be changed at startup through system properties (-Dnuttela.xxx=...).
+ */
+public class GnuConfig {
+    // wire format of outgoing connections: "binary" or "java" (the old serialized format, kept while we migrate).
+    // incoming connections always use whatever the other side announces.
+    public static final String CODEC = System.getProperty("nuttela.codec", "binary");
+
+    // "virtual" runs the node's blocking work on virtual threads (one shared executor, limits per activity)
+    public static final boolean VIRTUAL_THREADS = System.getProperty("nuttela.threads", "platform").equals("virtual");
+
+    // "reverse" sends hits back along the path the query took (merged and deduplicated at every relay) instead of
+    // straight to the node that asked
+    public static final boolean REVERSE_HITS = System.getProperty("nuttela.hitRouting", "direct").equals("reverse");
+
+    // capacity the node advertises to its neighbors (topology and SFQ weights); 0 measures it from how fast the node
+    // handles queries, its cores and the latency of its links
+    public static final int CAPACITY = Integer.getInteger("nuttela.capacity", 0);
+
+    // "tiered" splits nodes in ultrapeers, which route queries for the leaves attached to them, and leaves, which only
+    // answer them. Nodes start as leaves and become ultrapeers once their capacity and uptime (ms) reach these (and go
+    // back to being leaves if their capacity falls below half of it)
+    public static final boolean TIERED = System.getProperty("nuttela.topology", "flat").equals("tiered");
+    public static final int ULTRAPEER_CAPACITY = Integer.getInteger("nuttela.ultrapeerCapacity", 512);
+    public static final long ULTRAPEER_UPTIME = Long.getLong("nuttela.ultrapeerUptime", 60000);
+
+    // how many relayed queries are handled at once (the D of the SFQ(D) scheduler)
+    public static final int SFQ_DEPTH = Integer.getInteger("nuttela.sfqDepth", 8);
+
+    // limits of the queue of relayed queries kept for each neighbor (number of queries, total query size), and what
+    // happens to a neighbor that goes over them: "drop-oldest", "drop-lowest-ttl" or "reject" (answered with BUSY)
+    public static final int QUEUE_MAX_QUERIES = Integer.getInteger("nuttela.queueMaxQueries", 256);
+    public static final int QUEUE_MAX_BYTES = Integer.getInteger("nuttela.queueMaxBytes", 64 << 10);
+    public static final SfqScheduler.ShedPolicy SHED_POLICY = SfqScheduler.ShedPolicy.valueOf(
+            System.getProperty("nuttela.shedPolicy", "reject").toUpperCase(Locale.ROOT).replace('-', '_'));
+
+    // result sets of recent queries a node keeps to answer the same queries again (number of entries, how long in ms
+    // each one is kept; 0 turns the cache off)
+    public static final int RESULT_CACHE_SIZE = Integer.getInteger("nuttela.resultCacheSize", 1024);
+    public static final long RESULT_CACHE_TTL = Long.getLong("nuttela.resultCacheTtl", 5000);
+
+    // attenuated bloom filters: how many hops away the content a node advertises reaches (1 = only its own)
+    public static final int BLOOM_DEPTH = Math.max(1, Integer.getInteger("nuttela.bloomDepth", 3));
+
+    // how the posts of a user are found: "flood" (like tag searches) or "dht", a ring of the nodes that knows which
+    // nodes hold the posts of each user (users it can't answer for are still flooded)
+    public static final boolean DHT_LOOKUP = System.getProperty("nuttela.userLookup", "flood").equals("dht");
+
+    // hosts a node remembers (the best scored ones, by freshness, connection success and capacity), and the directory
+    // where it keeps them between runs (hosts-<id>.txt; empty = not kept; by default ~/.nuttela)
+    public static final int HOST_CACHE_SIZE = Integer.getInteger("nuttela.hostCacheSize", 128);
+    public static final String HOST_CACHE_DIR = System.getProperty("nuttela.hostCacheDir",
+            Path.of(System.getProperty("user.home"), ".nuttela").toString());
+
+    // how long (ms) a relayed query's guid is remembered, along with the neighbors it was sent to
+    public static final long GUID_WINDOW = Long.getLong("nuttela.guidWindow", 120000);
+
+    // k-walkers: how many neighbors a node sends its own queries to (relays always pass a query on to one).
+    // nuttela.walkers.<type>, e.g. nuttela.walkers.tag=3
+    public static final EnumMap<QueryType, Integer> WALKERS = GnuConfig.perQueryType("walkers", 1, 2, 1);
+
+    // ms without enough hits after which a node sends its own query to k more neighbors (0 = never).
+    // nuttela.hedgeDelay.<type>, e.g. nuttela.hedgeDelay.user=1000
+    public static final EnumMap<QueryType, Integer> HEDGE_DELAY = GnuConfig.perQueryType("hedgeDelay", 2000, 1500, 0);
+
+    // expanding ring: a node's own queries first go this many hops (0 = straight to the most), and every ringDelay ms
+    // they still lack hits they go 4 times further (GnuNode.RING_GROWTH), up to the hops it takes to reach the whole
+    // overlay (from the network size gossiped in the shuffles)
+    public static final int RING_START_TTL = Integer.getInteger("nuttela.ringStartTtl", 8);
+    public static final int RING_DELAY = Integer.getInteger("nuttela.ringDelay", 1000);
+
+    // interest shortcuts: how many of the nodes that answered our queries before a node keeps (0 = none), and how long
+    // (ms) its own queries wait for their answers before going out with the walkers
+    public static final int SHORTCUTS = Integer.getInteger("nuttela.shortcuts", 4);
+    public static final int SHORTCUT_WAIT = Integer.getInteger("nuttela.shortcutWait", 500);
+
+    private static EnumMap<QueryType, Integer> perQueryType(String name, int user, int tag, int multiUser) {
+        EnumMap<QueryType, Integer> values = new EnumMap<>(QueryType.class);
+        values.put(QueryType.USER, user);
+        values.put(QueryType.TAG, tag);
+        values.put(QueryType.MULTI_USER, multiUser);
+        for (QueryType type : QueryType.values()) {
+            String property = "nuttela." + name + "." + type.name().toLowerCase(Locale.ROOT);
+            values.put(type, Integer.getInteger(property, values.get(type)));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,324 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.connection.GnuConnectionPool;
+import org.t3.g11.proj2.nuttela.message.DhtMessage;
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+import org.t3.g11.proj2.nuttela.message.QueryHitMessage;
+import org.t3.g11.proj2.nuttela.message.Result;
+import org.t3.g11.proj2.utils.Utils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring (Chord-like) the nodes build next to the Gnutella overlay to find the posts of a user without flooding.
+ * <p>
+ * Nodes sit on the ring by their overlay id (IdFromName of their username) and the key of a user is IdFromName of its
+ * username. The successor of that key (the author's own node while it is online) keeps the list of nodes holding the
+ * user's posts: the author and its subscribers. Those records are soft state: every holder stores itself again each
+ * round and records nobody refreshed are dropped, so nodes leaving (or new nodes taking over part of the keys) only
+ * cost a round of stale answers. Lookups are iterative and take O(log N) hops thanks to the fingers.
+ */
+public class GnuDht {
+    public static final int SUCCESSORS = 3; // kept to survive the successor leaving
+    public static final int MAX_HOPS = 32;
+    public static final int FINGERS_PER_ROUND = 4; // fingers refreshed every round
+    public static final long RECORD_TTL = 4L * GnuNode.PING_FREQ * 1000; // ms a holder/predecessor lasts unrefreshed
+    public static final int MAX_HOLDERS = 8; // holders given out per GET
+    public static final int QUERIED_HOLDERS = 2; // holders asked per lookup (unless the author answers)
+
+    private final DhtPeer self;
+    private final DhtPeer contact; // where we join the ring
+    private final GnuConnectionPool connections;
+
+    private volatile DhtPeer predecessor = null;
+    private volatile long predecessorSeen = 0;
+    private volatile List<DhtPeer> successors; // closest first, never empty (just us while we are alone)
+    private final AtomicReferenceArray<DhtPeer> fingers = new AtomicReferenceArray<>(Integer.SIZE); // i => successor(id + 2^i)
+    private int nextFinger = 0;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<DhtPeer, Long>> holders = new ConcurrentHashMap<>(); // username => holder => expiry
+
+    public GnuDht(DhtPeer self, DhtPeer contact, GnuConnectionPool connections) {
+        this.self = self;
+        this.contact = contact;
+        this.connections = connections;
+        this.successors = List.of(self);
+    }
+
+    /**
+     * (from, to] on the ring (the whole ring if from == to).
+     */
+    static boolean inRange(int x, int from, int to) {
+        return from == to || (x != from && Integer.compareUnsigned(x - from, to - from) <= 0);
+    }
+
+    /**
+     * (from, to) on the ring (everything but from if from == to).
+     */
+    static boolean inOpenRange(int x, int from, int to) {
+        return x != from && (from == to || Integer.compareUnsigned(x - from, to - from) < 0);
+    }
+
+    private DhtPeer successor() {
+        return this.successors.get(0);
+    }
+
+    private boolean isAlone() {
+        return this.successor().equals(this.self);
+    }
+
+    /**
+     * Gets into the ring through the contact (nothing to do if we are the contact).
+     */
+    public void join() {
+        if (this.self.equals(this.contact)) return;
+        DhtPeer successor = this.find(this.self.id(), DhtMessage.closer(this.self.address(), this.contact));
+        if (successor != null && !successor.equals(this.self))
+            this.successors = List.of(successor); // it learns about us with our first NOTIFY
+    }
+
+    /**
+     * One round of upkeep: stabilize the ring, refresh some fingers and the records of the users we hold posts of.
+     */
+    public void maintain(Set<String> heldUsers) {
+        this.expire();
+        if (this.isAlone()) this.join();
+        this.stabilize();
+        this.fixFingers();
+        this.publish(heldUsers);
+    }
+
+    /**
+     * --->> Notify (to our successor)
+     * <<--- Neighbors
+     */
+    private void stabilize() {
+        DhtPeer successor = this.successor();
+        if (successor.equals(this.self)) {
+            // alone: whoever notified us closes the ring
+            DhtPeer pred = this.predecessor;
+            if (pred != null) this.successors = List.of(pred);
+            return;
+        }
+
+        DhtMessage reply;
+        try {
+            reply = (DhtMessage) this.connections.request(successor.address(),
+                    DhtMessage.notify(this.self.address(), this.self));
+        } catch (IOException | ClassCastException e) {
+            // the next one takes over
+            System.err.println("DHT successor " + successor.id() + " is gone.");
+            this.forget(successor);
+            return;
+        }
+
+        List<DhtPeer> newSuccessors = new ArrayList<>();
+        DhtPeer theirPred = reply.getNode();
+        // a node joined between us: it is our successor now (and gets our NOTIFY next round)
+        if (theirPred != null && inOpenRange(theirPred.id(), this.self.id(), successor.id()))
+            newSuccessors.add(theirPred);
+        newSuccessors.add(successor);
+        for (DhtPeer peer : reply.getNodes()) {
+            if (!peer.equals(this.self) && !newSuccessors.contains(peer)) newSuccessors.add(peer);
+        }
+        this.successors = List.copyOf(newSuccessors.subList(0, Math.min(newSuccessors.size(), GnuDht.SUCCESSORS)));
+    }
+
+    private void fixFingers() {
+        for (int i = 0; i < GnuDht.FINGERS_PER_ROUND; ++i) {
+            int finger = this.nextFinger;
+            this.nextFinger = (this.nextFinger + 1) % Integer.SIZE;
+            DhtPeer peer = this.findSuccessor(this.self.id() + (1 << finger)); // wraps around the ring
+            this.fingers.set(finger, this.self.equals(peer) ? null : peer);
+        }
+    }
+
+    /**
+     * --->> Store (to the successor of each user)
+     */
+    private void publish(Set<String> heldUsers) {
+        for (String username : heldUsers) {
+            DhtPeer owner = this.findSuccessor(Utils.IdFromName(username));
+            if (owner == null) continue;
+            if (owner.equals(this.self)) {
+                this.store(username, this.self);
+                continue;
+            }
+            try {
+                this.connections.send(owner.address(), DhtMessage.store(this.self.address(), username, this.self));
+            } catch (IOException e) {
+                System.err.println("Couldn't store the record of " + username + " at DHT node " + owner.id());
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        if (this.predecessor != null && now - this.predecessorSeen > GnuDht.RECORD_TTL) this.predecessor = null;
+        this.holders.values().forEach(users -> users.values().removeIf(expires -> expires <= now));
+        this.holders.values().removeIf(Map::isEmpty);
+    }
+
+    /**
+     * A node that stopped answering: out of our successors and fingers.
+     */
+    private synchronized void forget(DhtPeer peer) {
+        List<DhtPeer> newSuccessors = new ArrayList<>(this.successors);
+        newSuccessors.remove(peer);
+        this.successors = newSuccessors.isEmpty() ? List.of(this.self) : List.copyOf(newSuccessors);
+        for (int i = 0; i < this.fingers.length(); ++i) {
+            if (peer.equals(this.fingers.get(i))) this.fingers.set(i, null);
+        }
+        if (peer.equals(this.predecessor)) this.predecessor = null;
+    }
+
+    /**
+     * FOUND if the key is between us and our successor, else CLOSER with the closest node before the key we know.
+     */
+    private DhtMessage route(int key) {
+        DhtPeer successor = this.successor();
+        if (inRange(key, this.self.id(), successor.id())) return DhtMessage.found(this.self.address(), successor);
+
+        DhtPeer closest = successor;
+        List<DhtPeer> known = new ArrayList<>(this.successors);
+        for (int i = 0; i < this.fingers.length(); ++i) {
+            DhtPeer finger = this.fingers.get(i);
+            if (finger != null) known.add(finger);
+        }
+        for (DhtPeer peer : known) {
+            // closer to the key (going around the ring from us) than the best so far, without passing it
+            if (inOpenRange(peer.id(), this.self.id(), key)
+                    && Integer.compareUnsigned(peer.id() - this.self.id(), closest.id() - this.self.id()) > 0)
+                closest = peer;
+        }
+        return DhtMessage.closer(this.self.address(), closest);
+    }
+
+    /**
+     * @return the node in charge of the key, or null if the lookup got lost
+     */
+    public DhtPeer findSuccessor(int key) {
+        return this.find(key, this.route(key));
+    }
+
+    /**
+     * --->> Find (to each node closer to the key)
+     * <<--- Found OR Closer
+     */
+    private DhtPeer find(int key, DhtMessage step) {
+        for (int hop = 0; hop < GnuDht.MAX_HOPS; ++hop) {
+            if (step.getOp() == DhtMessage.Op.FOUND) return step.getNode();
+            DhtPeer next = step.getNode();
+            if (next.equals(this.self)) {
+                step = this.route(key); // never CLOSER to ourselves
+                continue;
+            }
+            try {
+                step = (DhtMessage) this.connections.request(next.address(),
+                        DhtMessage.find(this.self.address(), key));
+            } catch (IOException | ClassCastException e) {
+                System.err.println("DHT lookup failed at node " + next.id());
+                this.forget(next);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void store(String username, DhtPeer holder) {
+        this.holders.computeIfAbsent(username, u -> new ConcurrentHashMap<>())
+                .put(holder, System.currentTimeMillis() + GnuDht.RECORD_TTL);
+    }
+
+    private List<DhtPeer> holdersOf(String username) {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<DhtPeer, Long>> records =
+                new ArrayList<>(this.holders.getOrDefault(username, new ConcurrentHashMap<>()).entrySet());
+        records.removeIf(record -> record.getValue() <= now);
+        // the freshest ones are the most likely to still be there
+        records.sort(Map.Entry.<DhtPeer, Long>comparingByValue().reversed());
+
+        List<DhtPeer> result = new ArrayList<>();
+        for (Map.Entry<DhtPeer, Long> record : records.subList(0, Math.min(records.size(), GnuDht.MAX_HOLDERS)))
+            result.add(record.getKey());
+        return result;
+    }
+
+    /**
+     * Ring messages (all but QUERY, which the node answers itself).
+     *
+     * @return the reply, or null if there is none
+     */
+    public DhtMessage handle(DhtMessage msg) {
+        switch (msg.getOp()) {
+            case FIND -> {
+                return this.route(msg.getKey());
+            }
+            case NOTIFY -> {
+                DhtPeer sender = msg.getNode();
+                DhtPeer pred = this.predecessor;
+                if (pred == null || sender.equals(pred) || inOpenRange(sender.id(), pred.id(), this.self.id())) {
+                    this.predecessor = sender;
+                    this.predecessorSeen = System.currentTimeMillis();
+                }
+                if (this.isAlone() && !sender.equals(this.self)) this.successors = List.of(sender);
+                return DhtMessage.neighbors(this.self.address(), this.predecessor, this.successors);
+            }
+            case STORE -> this.store(msg.getUsername(), msg.getNode());
+            case GET -> {
+                return DhtMessage.holders(this.self.address(), this.holdersOf(msg.getUsername()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * --->> Get (to the successor of the user)
+     * <<--- Holders
+     * --->> Query (to some of the holders, the author first)
+     * <<--- QueryHit
+     *
+     * @return the posts of the user newer than since, or null if no holder could be asked
+     */
+    public List<Result> lookupUser(int guid, String username, long since) {
+        int key = Utils.IdFromName(username);
+        DhtPeer owner = this.findSuccessor(key);
+        if (owner == null) return null;
+
+        List<DhtPeer> userHolders;
+        if (owner.equals(this.self)) {
+            userHolders = this.holdersOf(username);
+        } else {
+            try {
+                userHolders = ((DhtMessage) this.connections.request(owner.address(),
+                        DhtMessage.get(this.self.address(), username))).getNodes();
+            } catch (IOException | ClassCastException e) {
+                System.err.println("Couldn't get the holders of " + username + " from DHT node " + owner.id());
+                return null;
+            }
+        }
+        userHolders = new ArrayList<>(userHolders);
+        userHolders.remove(this.self); // we know what we have
+        userHolders.sort(Comparator.comparingInt(holder -> holder.id() == key ? 0 : 1)); // the author has it all
+
+        LinkedHashMap<Integer, Result> results = new LinkedHashMap<>();
+        int answered = 0;
+        for (DhtPeer holder : userHolders) {
+            if (answered >= GnuDht.QUERIED_HOLDERS) break;
+            try {
+                GnuMessage reply = this.connections.request(holder.address(),
+                        DhtMessage.query(this.self.address(), guid, username, since));
+                for (Result result : ((QueryHitMessage) reply).getResultSet())
+                    results.put(result.guid, result);
+            } catch (IOException | ClassCastException e) {
+                System.err.println("DHT holder " + holder.id() + " of " + username + " didn't answer");
+                continue;
+            }
+            ++answered;
+            if (holder.id() == key) break;
+        }
+        return answered == 0 ? null : new ArrayList<>(results.values());
+    }
+}
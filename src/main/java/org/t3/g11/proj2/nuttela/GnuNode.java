@@ -1,140 +1,316 @@
 package org.t3.g11.proj2.nuttela;
 
 import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
-import com.google.common.util.concurrent.AtomicDouble;
+import org.t3.g11.proj2.nuttela.codec.GnuCodec;
+import org.t3.g11.proj2.nuttela.connection.GnuChannel;
+import org.t3.g11.proj2.nuttela.connection.GnuConnectionPool;
+import org.t3.g11.proj2.nuttela.connection.GnuMessageHandler;
+import org.t3.g11.proj2.nuttela.connection.GnuServer;
 import org.t3.g11.proj2.nuttela.message.*;
+import org.t3.g11.proj2.nuttela.message.query.MultiUserQuery;
 import org.t3.g11.proj2.nuttela.message.query.Query;
+import org.t3.g11.proj2.nuttela.message.query.QueryType;
 import org.t3.g11.proj2.nuttela.message.query.TagQuery;
 import org.t3.g11.proj2.nuttela.message.query.UserQuery;
 import org.t3.g11.proj2.peer.PeerObserver;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
-public class GnuNode implements Runnable {
+public class GnuNode implements Runnable, GnuMessageHandler {
     public static final int RECEIVETIMEOUT = 5000;
     public static final int PING_FREQ = 5;
+    public static final int SHUFFLE_FREQ = 10; // s between peer sampling rounds
+    public static final int PING_TIMEOUT = 3000; // deadline of each probe (shorter than the ping period)
     public static final int MAX_TOPOLOGY_FREQ = 10;
     public static final int TOPOLOGY_AGGRESSIVENESS = 64;
     public static final int MIN_NEIGH = 1;
     public static final int MAX_NEIGH = 2;
     public static final int HYSTERESIS_FACTOR = 1;
-
-    protected final ConcurrentHashMap<Integer, Set<Integer>> sentTo; // guid => neighbors
+    public static final int BLOOM_HISTORY = 16; // filter versions we can still send deltas from
+    public static final int BUSY_BACKOFF = 2000; // ms a neighbor that gets our BUSY should avoid us
+    public static final int LEAF_ULTRAPEERS = 3; // ultrapeers a leaf stays attached to
+    public static final int MAX_LEAVES = 32; // leaves an ultrapeer takes
+    public static final int REJOIN_TRIES = 5; // known hosts tried on startup before asking the bootstrap node for more
+    public static final int BOOTSTRAP_HOSTS = 10; // hosts given to a joining node
+    public static final int HOSTS_SAVE_FREQ = 30; // s between host cache snapshots
+    public static final int RING_GROWTH = 4; // how much further each ring of our own queries goes
+    public static final int SHORTCUT_FLOW = Integer.MIN_VALUE; // SFQ flow of the queries of nodes we are a shortcut of
+    public static final int SHORTCUT_WEIGHT = 1; // they share the weight of a single minimal neighbor
+    public static final int HIT_RECIPIENTS = 256; // nodes we sent hits to (the only ones that can have us as a shortcut)
+
+    protected final GuidTable sentTo; // guid => neighbors
     protected final ConcurrentHashMap<Integer, GnuNodeInfo> neighbors;
-    protected final CopyOnWriteArraySet<HostsCacheInfo> hostsCache;
+    protected final ConcurrentHashMap<Integer, GnuNodeInfo> leaves; // two-tier topology: attached to us (ultrapeer)
+    protected final HostCache hostsCache;
 
     protected final Integer id;
     protected final InetSocketAddress addr;
-    protected final int capacity;
-    protected final ExecutorService executors;
-    protected final ExecutorService timeouts;
+    protected volatile int capacity; // fixed, or measured by capacityEstimator
+    private final CapacityEstimator capacityEstimator; // null => fixed capacity
+    protected final GnuWorkers workers;
+    protected final GnuConnectionPool connections;
     protected final ScheduledExecutorService checkTopologyScheduler;
-    protected final ServerSocket serverSocket;
+    protected final ScheduledExecutorService hedgeScheduler;
+    protected final HitAggregator hitAggregator;
+    protected final ResultCache resultCache; // what we answered from our posts
+    protected final ResultCache hitCache; // hits of other nodes that passed through us (reverse hit routing)
+    protected final GnuDht dht; // null => user queries are flooded too
+    protected final PeerSampler sampler;
+    protected final ShortcutTable shortcuts;
+    protected final GnuServer server;
     protected final int maxNeigh;
-
-    protected BloomFilter<String> bloomFilter;
-    private int bloomFilterCapacity = GnuNodeInfo.BLOOMSIZE;
+    protected volatile boolean leaf; // two-tier topology: we answer queries but never pass them on
+    private final long startTime = System.currentTimeMillis();
+
+    protected ScalableBloomFilter bloomFilter; // neighbors get it as a plain filter
+    private List<BloomFilter<String>> deeperBlooms = List.of(); // merged from our neighbors' (depth 2, 3, ...)
+    private BloomFilter<String> leafBloom = null; // merged from our leaves' (advertised as ours); null => no leaves
+    // random start: a neighbor that knew a previous run of this node must not think it is up to date
+    private int bloomVersion = new Random().nextInt(Integer.MAX_VALUE);
+    private final LinkedHashMap<Integer, BloomBits.Snapshot> bloomHistory = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, BloomBits.Snapshot> eldest) {
+            return this.size() > GnuNode.BLOOM_HISTORY;
+        }
+    };
+    // least recently answered first
+    private final LinkedHashMap<InetSocketAddress, Boolean> hitRecipients = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Boolean> eldest) {
+            return this.size() > GnuNode.HIT_RECIPIENTS;
+        }
+    };
     private PeerObserver peerObserver = null;
 
-    private final Semaphore querySemaphore = new Semaphore(0, true);
-    private final AtomicDouble maxFinishTagServed = new AtomicDouble(0.0);
-    private final AtomicDouble currentStartTag = new AtomicDouble(-1.0);
+    private final ConcurrentHashMap<Integer, AtomicInteger> missingHits = new ConcurrentHashMap<>(); // our queries
+    private final ConcurrentHashMap<Integer, QueryMessage> rings = new ConcurrentHashMap<>(); // their widest ring
+    private final ConcurrentHashMap<Integer, Set<String>> unansweredUsers = new ConcurrentHashMap<>(); // multi-user
+    private final SfqScheduler queryScheduler = new SfqScheduler(GnuConfig.SFQ_DEPTH, // relayed queries
+            GnuConfig.QUEUE_MAX_QUERIES, GnuConfig.QUEUE_MAX_BYTES, GnuConfig.SHED_POLICY);
 
     public GnuNode(int id, InetSocketAddress addr, int maxNeigh, int capacity) throws IOException {
+        this(id, addr, maxNeigh, capacity, null);
+    }
+
+    private GnuNode(int id, InetSocketAddress addr, int maxNeigh, int capacity, CapacityEstimator capacityEstimator)
+            throws IOException {
         this.id = id;
         this.addr = addr;
         this.maxNeigh = maxNeigh;
-        this.capacity = capacity;
+        this.capacityEstimator = capacityEstimator;
+        this.capacity = capacityEstimator == null ? capacity : capacityEstimator.estimate();
 
-        // should be wrapped to grow
-        this.buildBloom(Collections.emptySet());
         this.neighbors = new ConcurrentHashMap<>();
-        this.sentTo = new ConcurrentHashMap<>();
-        this.hostsCache = new CopyOnWriteArraySet<>();
-
-        int max_reqs = Runtime.getRuntime().availableProcessors() + 1;
-        this.executors = Executors.newFixedThreadPool(max_reqs);
-        this.timeouts = Executors.newCachedThreadPool();
-        this.checkTopologyScheduler = Executors.newSingleThreadScheduledExecutor();
-
-        this.serverSocket = new ServerSocket(this.addr.getPort(), 100,
-                this.addr.getAddress());
+        this.leaves = new ConcurrentHashMap<>();
+        this.leaf = GnuConfig.TIERED;
+        this.buildBloom(Collections.emptySet());
+        this.rebuildDeeperBlooms();
+        this.sentTo = new GuidTable(GnuConfig.GUID_WINDOW);
+        this.hostsCache = new HostCache(GnuConfig.HOST_CACHE_SIZE, this.addr);
+        this.loadHosts();
+
+        this.workers = new GnuWorkers(GnuConfig.VIRTUAL_THREADS);
+        this.connections = new GnuConnectionPool(GnuNode.RECEIVETIMEOUT, GnuCodec.byName(GnuConfig.CODEC),
+                this.workers.threadFactory("gnu-conn"));
+        this.checkTopologyScheduler = Executors.newSingleThreadScheduledExecutor(this.workers.threadFactory("gnu-topology"));
+        this.hedgeScheduler = Executors.newSingleThreadScheduledExecutor(this.workers.threadFactory("gnu-hedge"));
+        this.resultCache = new ResultCache(GnuConfig.RESULT_CACHE_SIZE, GnuConfig.RESULT_CACHE_TTL);
+        this.hitCache = new ResultCache(GnuConfig.RESULT_CACHE_SIZE, GnuConfig.RESULT_CACHE_TTL);
+        this.hitAggregator = new HitAggregator(GnuConfig.GUID_WINDOW, this.workers.threadFactory("gnu-hits"),
+                this::sendHitsUpstream);
+        this.sampler = new PeerSampler(this.addr, BootstrapGnuNode.NODEENDPOINT, this.connections);
+        this.sampler.seed(this.hostsCache.best(PeerSampler.VIEW_SIZE));
+        this.shortcuts = new ShortcutTable(GnuConfig.SHORTCUTS, this.addr);
+        this.dht = GnuConfig.DHT_LOOKUP ? new GnuDht(new DhtPeer(this.id, this.addr),
+                new DhtPeer(BootstrapGnuNode.BOOTSTRAPID, BootstrapGnuNode.NODEENDPOINT), this.connections) : null;
+
+        this.server = new GnuServer(this.addr, this);
     }
 
 
     public GnuNode(int id, InetSocketAddress addr) throws IOException {
-        this(id, addr, GnuNode.MAX_NEIGH, (int) ((Math.random() * (10 - 2)) + 2));
+        this(id, addr, GnuNode.MAX_NEIGH, GnuConfig.CAPACITY,
+                GnuConfig.CAPACITY > 0 ? null : new CapacityEstimator(GnuConfig.SFQ_DEPTH));
+    }
+
+    public GnuWorkers getWorkers() {
+        return this.workers;
     }
 
     public void setObserver(PeerObserver peerObserver) {
         this.peerObserver = peerObserver;
     }
 
-    public void addToBloom(String newEntry) {
-        this.bloomFilter.put(newEntry);
+    // every change to the filters gets a new version (under the node's lock, so version and bits always match).
+    // the filter grows by slices of the same geometry everywhere (neighbors merge it into their deeper filters)
+    public synchronized void addToBloom(String newEntry) {
+        if (this.bloomFilter.add(newEntry)) this.bumpBloomVersion();
+    }
 
-        synchronized (this) {
-            if (this.bloomFilter.approximateElementCount() > this.bloomFilterCapacity) {
-                // needs to grow
-                this.bloomFilterCapacity *= 2;
+    /**
+     * Takes out an entry added with addToBloom (once for every time it was added).
+     */
+    public synchronized void removeFromBloom(String entry) {
+        if (this.bloomFilter.remove(entry)) this.bumpBloomVersion();
+    }
 
-                BloomFilter<String> biggerFilter = BloomFilter.create(
-                        Funnels.stringFunnel(StandardCharsets.UTF_8),
-                        this.bloomFilterCapacity, GnuNodeInfo.BLOOMMISSCHANCE
-                );
+    public synchronized void buildBloom(Set<String> subs) {
+        ScalableBloomFilter newBloom = new ScalableBloomFilter(GnuNodeInfo.BLOOMMISSCHANCE);
+        for (String s : subs) {
+            newBloom.add(s);
+        }
+        this.bloomFilter = newBloom;
+        this.bumpBloomVersion();
+    }
 
-                biggerFilter.putAll(this.bloomFilter);
-                this.bloomFilter = biggerFilter;
+    /**
+     * Our filter for depth d + 1 is what our neighbors have at depth d: their own filters at depth 2, their
+     * neighbors' at depth 3, and so on (neighbors running with another geometry, and saturated filters, are left
+     * out). Ultrapeers also advertise the content of their leaves as their own.
+     */
+    private void rebuildDeeperBlooms() {
+        List<BloomFilter<String>> levels = new ArrayList<>();
+        for (int depth = 2; depth <= GnuConfig.BLOOM_DEPTH; ++depth) {
+            BloomFilter<String> level = GnuNodeInfo.newBloomFilter();
+            for (GnuNodeInfo neigh : this.neighbors.values()) {
+                List<BloomFilter<String>> theirs = neigh.bloomLevels();
+                if (theirs.size() < depth - 1) continue;
+                BloomFilter<String> their = theirs.get(depth - 2);
+                if (their != null && level.isCompatible(their) && !GnuNodeInfo.isSaturated(their))
+                    level.putAll(their);
             }
+            levels.add(level);
+        }
+
+        BloomFilter<String> leafLevel = null;
+        for (GnuNodeInfo leafInfo : this.leaves.values()) {
+            if (leafLevel == null) leafLevel = GnuNodeInfo.newBloomFilter();
+            BloomFilter<String> theirs = leafInfo.getBloomFilter();
+            if (theirs != null && leafLevel.isCompatible(theirs) && !GnuNodeInfo.isSaturated(theirs))
+                leafLevel.putAll(theirs);
+        }
+
+        synchronized (this) {
+            if (levels.equals(this.deeperBlooms) && Objects.equals(leafLevel, this.leafBloom)) return;
+            this.deeperBlooms = levels;
+            this.leafBloom = leafLevel;
+            this.bumpBloomVersion();
         }
     }
 
-    public void buildBloom(Set<String> subs) {
-        BloomFilter<String> newBloom = BloomFilter.create(
-                Funnels.stringFunnel(StandardCharsets.UTF_8),
-                this.bloomFilterCapacity, GnuNodeInfo.BLOOMMISSCHANCE);
-        for (String s : subs) {
-            newBloom.put(s);
+    private synchronized List<BloomFilter<String>> bloomLevels() {
+        List<BloomFilter<String>> levels = new ArrayList<>();
+        BloomFilter<String> own = this.bloomFilter.toBloomFilter();
+        if (this.leafBloom != null) {
+            own = own.copy(); // the view is shared
+            own.putAll(this.leafBloom);
         }
-        this.bloomFilter = newBloom;
+        levels.add(own);
+        levels.addAll(this.deeperBlooms);
+        return levels;
     }
 
-    protected void bootstrap(InetSocketAddress bootstrapEndPoint) {
-        this.pickNeighborToDrop(bootstrapEndPoint);
+    private void bumpBloomVersion() {
+        // never negative: that's GnuNodeInfo.UNKNOWN_BLOOM_VERSION
+        this.bloomVersion = (this.bloomVersion + 1) & Integer.MAX_VALUE;
     }
 
     protected void bootstrap() {
-        this.bootstrap(BootstrapGnuNode.NODEENDPOINT);
+        // warm restart: the hosts we knew before (or got from our first shuffle)
+        if (this.joinKnownHosts()) return;
+        // else some from the bootstrap node (which never becomes anyone's neighbor)
+        this.requestHosts();
+        this.joinKnownHosts();
+    }
+
+    /**
+     * @return true if one of the best hosts we know took us
+     */
+    private boolean joinKnownHosts() {
+        for (HostsCacheInfo host : this.hostsCache.best(GnuNode.REJOIN_TRIES)) {
+            this.connectTo(host.address);
+            if (!this.neighbors.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * --->> Bootstrap (to the bootstrap node)
+     * <<--- Bootstrap
+     */
+    protected void requestHosts() {
+        try {
+            BootstrapMessage reply = (BootstrapMessage) this.connections.request(BootstrapGnuNode.NODEENDPOINT,
+                    new BootstrapMessage(this.addr, List.of(new HostsCacheInfo(true, this.addr, this.capacity))));
+            this.hostsCache.update(reply.getHosts());
+            this.sampler.seed(reply.getHosts());
+        } catch (ClassCastException | IOException e) {
+            System.err.println("Failed to get hosts from the bootstrap node!");
+        }
+    }
+
+    /**
+     * Asks the host to become our neighbor (or to take us as a leaf), keeping track of whether it answered.
+     */
+    protected boolean connectTo(InetSocketAddress host) {
+        boolean alive = this.leaf ? this.attach(host) : this.pickNeighborToDrop(host);
+        if (alive) this.hostsCache.recordSuccess(host);
+        else this.hostsCache.recordFailure(host);
+        return alive;
+    }
+
+    private Path hostsFile() {
+        return Path.of(GnuConfig.HOST_CACHE_DIR, "hosts-" + this.id + ".txt");
+    }
+
+    private void loadHosts() {
+        if (GnuConfig.HOST_CACHE_DIR.isEmpty() || !Files.exists(this.hostsFile())) return;
+        try {
+            this.hostsCache.load(this.hostsFile());
+        } catch (IOException e) {
+            System.err.println("Failed to load the host cache.");
+            e.printStackTrace();
+        }
+    }
+
+    private void saveHosts() {
+        if (GnuConfig.HOST_CACHE_DIR.isEmpty()) return;
+        try {
+            Files.createDirectories(this.hostsFile().getParent());
+            this.hostsCache.save(this.hostsFile());
+        } catch (IOException e) {
+            System.err.println("Failed to save the host cache.");
+            e.printStackTrace();
+        }
     }
 
     protected void dropNeigh(GnuNodeInfo toDrop) {
-        try (Socket dropSocket = new Socket(toDrop.address.getAddress(), toDrop.address.getPort())) {
-            ObjectOutputStream oos = new ObjectOutputStream(dropSocket.getOutputStream());
-            oos.flush();
-            ObjectInputStream ois = new ObjectInputStream(dropSocket.getInputStream());
-
-            oos.writeObject(new DropMessage(this.addr, this.id));
-            oos.flush();
-            GnuMessage dropReply = (GnuMessage) ois.readObject();
+        try {
+            GnuMessage dropReply = this.connections.request(toDrop.getAddr(), new DropMessage(this.addr, this.id));
             // we can temporarily go over the neighbor limit
             if (dropReply.getCmd() == GnuNodeCMD.DROPOK) {
-                this.neighbors.remove(toDrop.getId());
+                this.removeNeigh(toDrop.getId());
             }
-        } catch (ClassNotFoundException | IOException e) {
-            this.neighbors.remove(toDrop.getId());
+        } catch (IOException e) {
+            this.removeNeigh(toDrop.getId());
             System.err.println("Failed to connect to endpoint for drop!");
         }
     }
 
+    protected void removeNeigh(int neighId) {
+        GnuNodeInfo removed = this.neighbors.remove(neighId);
+        if (removed == null) removed = this.leaves.remove(neighId);
+        if (removed != null) this.connections.close(removed.getAddr());
+        this.queryScheduler.removeFlow(neighId);
+    }
+
     /**
      * Returns true if connection was successful (alive). False otherwise.
      * --->> NumNeigh
@@ -143,20 +319,16 @@ public class GnuNode implements Runnable {
      * <<--- ACK
      */
     public boolean pickNeighborToDrop(InetSocketAddress newNeighAddr) {
-        try (Socket socket = new Socket(newNeighAddr.getAddress(), newNeighAddr.getPort())) {
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-            oos.flush();
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+        try {
             // ask if peer wants to become neighbor
-            oos.writeObject(new NumNeighMessage(this.addr, this.neighbors.size()));
-            oos.flush();
-            MyNeighMessage reply = (MyNeighMessage) ois.readObject(); // wait reply
+            MyNeighMessage reply = (MyNeighMessage) this.connections.request(newNeighAddr,
+                    new NumNeighMessage(this.addr, this.neighbors.size())); // wait reply
             if (reply.getNeighbors() == MyNeighMessage.REJECT) return true; // check if it wants to be our neighbor
 
             if (this.neighbors.size() + 1 <= this.maxNeigh) {
                 // we have room
-                oos.writeObject(new NeighMessage(this.addr, this.id, this.neighbors.size(), this.capacity, this.bloomFilter));
-                oos.flush();
+                this.connections.send(newNeighAddr,
+                        new NeighMessage(this.addr, this.id, this.neighbors.size(), this.capacity, this.bloomFilter.toBloomFilter()));
                 this.neighbors.put(reply.getId(),
                         new GnuNodeInfo(reply.getId(), reply.getNeighbors(), reply.getCapacity(), reply.getAddr(), reply.getBloomFilter()));
                 return true;
@@ -166,8 +338,7 @@ public class GnuNode implements Runnable {
             List<Map.Entry<Integer, GnuNodeInfo>> dropCandidates = this.neighbors.entrySet().stream()
                     .filter(e -> e.getValue().capacity < reply.getCapacity()).toList();
             if (dropCandidates.isEmpty()) { // reject Y
-                oos.writeObject(new NeighMessage(this.addr, this.id, -1, this.capacity, this.bloomFilter));
-                oos.flush();
+                this.connections.send(newNeighAddr, new NeighMessage(this.addr, this.id, -1, this.capacity, this.bloomFilter.toBloomFilter()));
                 return true;
             }
             GnuNodeInfo toDrop =
@@ -183,18 +354,17 @@ public class GnuNode implements Runnable {
                         toDrop.nNeighbors > reply.getNeighbors() + GnuNode.HYSTERESIS_FACTOR) {
                     // accept Y
                     this.neighbors.put(reply.getId(), new GnuNodeInfo(reply.getId(), reply.getNeighbors(), reply.getCapacity(), reply.getAddr(), reply.getBloomFilter()));
-                    oos.writeObject(new NeighMessage(this.addr, this.id, this.neighbors.size(), this.capacity, this.bloomFilter));
-                    oos.flush();
+                    this.connections.send(newNeighAddr,
+                            new NeighMessage(this.addr, this.id, this.neighbors.size(), this.capacity, this.bloomFilter.toBloomFilter()));
                     this.dropNeigh(toDrop);
                     return true;
                 }
             }
 
             // otherwise just reject Y
-            oos.writeObject(new NeighMessage(this.addr, this.id, -1, this.capacity, null));
-            oos.flush();
+            this.connections.send(newNeighAddr, new NeighMessage(this.addr, this.id, -1, this.capacity, null));
             return true;
-        } catch (ClassNotFoundException e) {
+        } catch (ClassCastException e) {
             System.err.println("Communication failed with neighbor!");
             e.printStackTrace();
             return true;
@@ -205,62 +375,391 @@ public class GnuNode implements Runnable {
         }
     }
 
+    /**
+     * Returns true if the ultrapeer answered (alive). False otherwise.
+     * --->> Leaf
+     * <<--- MyNeigh
+     */
+    public boolean attach(InetSocketAddress ultrapeerAddr) {
+        try {
+            MyNeighMessage reply = (MyNeighMessage) this.connections.request(ultrapeerAddr,
+                    new LeafMessage(this.addr, this.id, this.capacity, this.bloomFilter.toBloomFilter()));
+            if (reply.getNeighbors() != MyNeighMessage.REJECT)
+                this.neighbors.put(reply.getId(), new GnuNodeInfo(reply.getId(), reply.getNeighbors(),
+                        reply.getCapacity(), reply.getAddr(), reply.getBloomFilter()));
+            return true;
+        } catch (ClassCastException e) {
+            System.err.println("Communication failed with ultrapeer!");
+            e.printStackTrace();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to connect to endpoint for leaf!");
+            return false;
+        }
+    }
+
+    /**
+     * Lets go of all of them (whether they agree or not).
+     */
+    private void dropAll(Map<Integer, GnuNodeInfo> nodes) {
+        for (GnuNodeInfo node : new ArrayList<>(nodes.values())) {
+            this.dropNeigh(node);
+            this.removeNeigh(node.getId());
+        }
+    }
+
     /**
      * --->> Query
      * <<--- ACK
      */
     public void query(QueryMessage qm) {
-        Set<Integer> neighSentTo;
-        if (this.sentTo.containsKey(qm.getGuid())) {
-            neighSentTo = this.sentTo.get(qm.getGuid());
-        } else {
-            neighSentTo = new HashSet<>();
-            this.sentTo.put(qm.getGuid(), neighSentTo);
+        this.query(qm, 1);
+    }
+
+    /**
+     * Sends the query down several paths at once: each walker claims a different neighbor.
+     */
+    protected void query(QueryMessage qm, int walkers) {
+        if (qm.getQuery().getQueryType() == QueryType.MULTI_USER) {
+            this.queryMulti(qm);
+            return;
         }
 
+        // no point in more walkers than neighbors that haven't seen the query yet
+        walkers = Math.max(1, Math.min(walkers, this.countNotSent(qm.getGuid())));
+        for (int i = 1; i < walkers; ++i)
+            this.workers.execute(GnuWorkers.Activity.QUERIES, () -> this.walk(qm));
+        this.walk(qm);
+    }
+
+    private void walk(QueryMessage qm) {
         // TODO incremental sleep retries
         for (int nTries = 0; nTries < 5; ++nTries) {
             List<Map.Entry<Integer, GnuNodeInfo>> sortedNeighs = new ArrayList<>(this.neighbors.entrySet());
             // neighbors are sorted by:
-            // first - if they probably contain the content of the query
-            // second - by its capacity
+            // first - if they aren't asking us to back off
+            // second - how close to them the content of the query probably is (they have it, their neighbors, ...)
+            // third - by its capacity
             sortedNeighs.sort(Map.Entry.comparingByValue(Comparator.comparingInt(n -> n.capacity)));
             Collections.reverse(sortedNeighs);
-            // 0 and 1 swapped to get mightContain in descending order
             sortedNeighs.sort(Map.Entry.comparingByValue(Comparator.comparingInt(n ->
-                    n.bloomFilter.mightContain(qm.getQuery().getQueryString()) ? 0 : 1)));
+                    n.matchDepth(qm.getQuery().getQueryString()))));
+            sortedNeighs.sort(Map.Entry.comparingByValue(Comparator.comparingInt(n -> n.isBusy() ? 1 : 0)));
 
             for (Map.Entry<Integer, GnuNodeInfo> neighbour : sortedNeighs) {
                 int neighId = neighbour.getKey();
                 GnuNodeInfo neighInfo = neighbour.getValue();
-                // if already sent
-                if (!neighSentTo.add(neighId)) continue;
+                // if already sent (by us or by another walker)
+                if (!this.sentTo.markSent(qm.getGuid(), neighId)) continue;
 
                 if (neighInfo.maybeDead()) continue;
-                try (Socket sendSkt = new Socket(neighInfo.getInetAddr(), neighInfo.getPort())) {
-                    ObjectOutputStream oos = new ObjectOutputStream(sendSkt.getOutputStream());
-                    oos.flush();
-                    ObjectInputStream ois = new ObjectInputStream(sendSkt.getInputStream());
-                    oos.writeObject(qm);
-                    oos.flush();
+                try {
+                    this.connections.send(neighInfo.getAddr(), qm);
                     return;
-                } catch (Exception e) {
+                } catch (IOException e) {
                     System.err.println("Couldn't connect to neighbor " + neighbour.getKey());
                 }
             }
             // clear the container so we retry the guys
-            neighSentTo.clear();
+            this.sentTo.clearSent(qm.getGuid());
         }
     }
 
+    private int countNotSent(int guid) {
+        int count = 0;
+        for (GnuNodeInfo neighInfo : this.neighbors.values()) {
+            if (!neighInfo.maybeDead() && !this.sentTo.wasSent(guid, neighInfo.getId())) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Splits the users of a multi user query between the neighbors: each user goes to the neighbor it seems closest to
+     * (by their bloom filters; ties by capacity, busy ones last), or to the best neighbor if nobody seems to have it. One message per
+     * neighbor; if sending fails, its users are split again among the ones left.
+     */
+    protected void queryMulti(QueryMessage qm) {
+        MultiUserQuery query = (MultiUserQuery) qm.getQuery();
+        List<GnuNodeInfo> candidates = new ArrayList<>(this.neighbors.values());
+        candidates.removeIf(n -> n.maybeDead() || this.sentTo.wasSent(query.getGuid(), n.getId()));
+        candidates.sort(Comparator.comparingInt((GnuNodeInfo n) -> n.capacity).reversed());
+        candidates.sort(Comparator.comparingInt(n -> n.isBusy() ? 1 : 0)); // the ones asking us to back off last
+
+        Map<String, Long> pending = new LinkedHashMap<>(query.getUsers());
+        while (!pending.isEmpty() && !candidates.isEmpty()) {
+            Map<GnuNodeInfo, Map<String, Long>> parts = new LinkedHashMap<>();
+            for (Map.Entry<String, Long> user : pending.entrySet()) {
+                GnuNodeInfo target = candidates.get(0);
+                int targetDepth = Integer.MAX_VALUE;
+                for (GnuNodeInfo candidate : candidates) {
+                    int depth = candidate.matchDepth(user.getKey());
+                    if (depth < targetDepth) {
+                        target = candidate;
+                        targetDepth = depth;
+                    }
+                }
+                parts.computeIfAbsent(target, n -> new LinkedHashMap<>()).put(user.getKey(), user.getValue());
+            }
+
+            pending.clear();
+            for (Map.Entry<GnuNodeInfo, Map<String, Long>> part : parts.entrySet()) {
+                GnuNodeInfo neighInfo = part.getKey();
+                if (this.sentTo.markSent(query.getGuid(), neighInfo.getId())) {
+                    try {
+                        this.connections.send(neighInfo.getAddr(),
+                                new QueryMessage(qm.getAddr(), qm.getId(), query.part(part.getValue())));
+                        continue;
+                    } catch (IOException e) {
+                        System.err.println("Couldn't connect to neighbor " + neighInfo.getId());
+                    }
+                }
+                candidates.remove(neighInfo);
+                pending.putAll(part.getValue());
+            }
+        }
+    }
+
+    /**
+     * Our own query. With the DHT on, user (and multi-user) queries go to the nodes it says hold the posts of each
+     * user, and only the users it can't answer for are flooded.
+     */
     public void query(Query query) {
-        this.query(new QueryMessage(this.addr, this.id, query));
+        this.sentTo.setUpstream(query.getGuid(), this.id); // ours: hits stop here
+        if (this.dht == null || query.getQueryType() == QueryType.TAG) {
+            this.flood(query);
+            return;
+        }
+
+        Map<String, Long> users = (query instanceof MultiUserQuery multiQuery) ? multiQuery.getUsers()
+                : Map.of(query.getQueryString(), ((UserQuery) query).getLatestDate());
+        Map<String, Long> unanswered = new ConcurrentHashMap<>();
+        AtomicInteger pending = new AtomicInteger(users.size());
+        Runnable lookedUp = () -> {
+            if (pending.decrementAndGet() == 0 && !unanswered.isEmpty())
+                this.flood((query instanceof MultiUserQuery multiQuery) ? multiQuery.part(unanswered) : query);
+        };
+        for (Map.Entry<String, Long> user : users.entrySet()) {
+            // each lookup waits on a few hops
+            boolean started = this.workers.execute(GnuWorkers.Activity.LOOKUPS, () -> {
+                List<Result> results = this.dht.lookupUser(query.getGuid(), user.getKey(), user.getValue());
+                if (results == null) unanswered.put(user.getKey(), user.getValue());
+                else if (!results.isEmpty()) this.deliverHits(query.getGuid(), results);
+                lookedUp.run();
+            });
+            if (!started) {
+                // too many lookups going on: that user is flooded instead
+                unanswered.put(user.getKey(), user.getValue());
+                lookedUp.run();
+            }
+        }
+    }
+
+    /**
+     * --->> Query (to our shortcuts, ttl 1)
+     * Goes to our shortcuts first, and only goes out with the walkers if they don't answer enough of it in time.
+     */
+    private void flood(Query query) {
+        List<InetSocketAddress> shortcuts = this.shortcuts.getAll();
+        if (shortcuts.isEmpty() || query.getNeededHits() <= 0) {
+            this.spread(query);
+            return;
+        }
+
+        this.expectHits(query);
+        QueryMessage shortcutMsg = new QueryMessage(this.addr, this.id, query.withTtl(1));
+        for (InetSocketAddress shortcut : shortcuts) {
+            this.shortcuts.recordTry(shortcut);
+            this.workers.execute(GnuWorkers.Activity.QUERIES, () -> {
+                try {
+                    this.connections.send(shortcut, shortcutMsg);
+                } catch (IOException e) {
+                    System.err.println("Couldn't reach shortcut " + shortcut);
+                    this.shortcuts.remove(shortcut);
+                }
+            });
+        }
+        this.hedgeScheduler.schedule(() -> this.afterShortcuts(query), GnuConfig.SHORTCUT_WAIT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * What the shortcuts didn't answer goes out with the walkers.
+     */
+    private void afterShortcuts(Query query) {
+        int guid = query.getGuid();
+        if (this.sentTo.isCancelled(guid)) return;
+
+        if (query instanceof MultiUserQuery multiQuery) {
+            Set<String> unanswered = this.unansweredUsers.get(guid);
+            if (unanswered == null || unanswered.isEmpty()) return; // the shortcuts had them all
+            Map<String, Long> users = new LinkedHashMap<>(multiQuery.getUsers());
+            users.keySet().retainAll(unanswered);
+            this.spread(multiQuery.part(users));
+        } else {
+            AtomicInteger missing = this.missingHits.get(guid);
+            if (missing == null || missing.get() <= 0) return; // the shortcuts had it
+            this.spread(query);
+        }
+    }
+
+    /**
+     * Goes out with the walkers configured for its type, and is hedged if the hits are late. It starts with a small
+     * ttl, and goes further (expanding ring) while it still lacks hits.
+     */
+    private void spread(Query query) {
+        int maxTtl = this.maxUsefulTtl();
+        int startTtl = GnuConfig.RING_START_TTL > 0 ? Math.min(GnuConfig.RING_START_TTL, maxTtl) : maxTtl;
+        Query firstRing = query.withTtl(startTtl);
+        QueryMessage qm = new QueryMessage(this.addr, this.id, firstRing);
+        if (query.getNeededHits() > 0) {
+            this.expectHits(query);
+            this.rings.put(query.getGuid(), qm);
+            int hedgeDelay = GnuConfig.HEDGE_DELAY.get(query.getQueryType());
+            if (hedgeDelay > 0)
+                this.hedgeScheduler.schedule(() -> this.hedge(qm), hedgeDelay, TimeUnit.MILLISECONDS);
+            this.hedgeScheduler.schedule(() -> this.expandRing(qm), GnuConfig.RING_DELAY, TimeUnit.MILLISECONDS);
+        }
+        this.query(qm, GnuConfig.WALKERS.get(query.getQueryType()));
+        this.queryLeaves(firstRing);
+    }
+
+    /**
+     * Starts counting the hits our query still needs (unless it already is): for multi-user queries, that is how many
+     * users haven't answered, however many posts each one has.
+     */
+    private void expectHits(Query query) {
+        this.missingHits.putIfAbsent(query.getGuid(), new AtomicInteger(query.getNeededHits()));
+        if (query instanceof MultiUserQuery multiQuery) {
+            Set<String> users = ConcurrentHashMap.newKeySet();
+            users.addAll(multiQuery.getUsers().keySet());
+            this.unansweredUsers.putIfAbsent(query.getGuid(), users);
+        }
+    }
+
+    /**
+     * Hops a walk needs to go through (about) every node of the overlay: N ln N for N nodes, like collecting coupons,
+     * with N from the gossiped size estimate. Until that estimate has settled, a fresh node would think it is almost
+     * alone, so its searches are only held to the usual STARTTTL.
+     */
+    private int maxUsefulTtl() {
+        if (!this.sampler.isSizeSettled()) return Query.STARTTTL;
+        double size = this.sampler.estimateSize();
+        return (int) Math.min(Query.STARTTTL, Math.ceil(size * Math.log(size + 1)) + 1);
+    }
+
+    /**
+     * Sends the query again, RING_GROWTH times further, if it still lacks hits and isn't reaching the whole overlay
+     * yet. Relays have its guid, so they pass it on to neighbors it didn't go to before.
+     */
+    private void expandRing(QueryMessage qm) {
+        int guid = qm.getGuid();
+        AtomicInteger missing = this.missingHits.get(guid);
+        if (missing == null || missing.get() <= 0) return; // got its hits
+
+        Query query = qm.getQuery();
+        int maxTtl = this.maxUsefulTtl();
+        if (query.getTtl() >= maxTtl) {
+            // last ring: leave the hits count to the hedge (if it hasn't gone out yet), then forget it
+            int hedgeDelay = GnuConfig.HEDGE_DELAY.get(query.getQueryType());
+            this.hedgeScheduler.schedule(() -> this.forgetQuery(guid), hedgeDelay, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        Query next = query.withTtl((int) Math.min((long) query.getTtl() * GnuNode.RING_GROWTH, maxTtl));
+        Set<String> unanswered = this.unansweredUsers.get(guid);
+        if (next instanceof MultiUserQuery multiQuery && unanswered != null) {
+            // only the users that haven't answered yet go further
+            Map<String, Long> users = new LinkedHashMap<>(multiQuery.getUsers());
+            users.keySet().retainAll(unanswered);
+            if (users.isEmpty()) return;
+            next = multiQuery.part(users);
+        }
+        QueryMessage nextRing = new QueryMessage(this.addr, this.id, next);
+        this.rings.put(guid, nextRing);
+        this.workers.execute(GnuWorkers.Activity.QUERIES,
+                () -> this.query(nextRing, GnuConfig.WALKERS.get(query.getQueryType())));
+        this.hedgeScheduler.schedule(() -> this.expandRing(nextRing), GnuConfig.RING_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * --->> Query (to the leaves that might have what it asks for: they answer it but never pass it on)
+     */
+    protected void queryLeaves(Query query) {
+        if (this.leaves.isEmpty()) return;
+        QueryMessage leafMsg = new QueryMessage(this.addr, this.id, query);
+        for (GnuNodeInfo leafInfo : this.leaves.values()) {
+            if (leafInfo.maybeDead() || !GnuNode.mightHave(leafInfo, query)) continue;
+            if (!this.sentTo.markSent(query.getGuid(), leafInfo.getId())) continue;
+            try {
+                this.connections.send(leafInfo.getAddr(), leafMsg);
+            } catch (IOException e) {
+                System.err.println("Couldn't connect to leaf " + leafInfo.getId());
+            }
+        }
+    }
+
+    private static boolean mightHave(GnuNodeInfo nodeInfo, Query query) {
+        if (query.getQueryType() != QueryType.MULTI_USER) return nodeInfo.mightHold(query.getQueryString());
+        for (String user : ((MultiUserQuery) query).getUsers().keySet()) {
+            if (nodeInfo.mightHold(user)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * More walkers, as far as the ring the query is at.
+     */
+    private void hedge(QueryMessage qm) {
+        AtomicInteger missing = this.missingHits.get(qm.getGuid());
+        if (missing == null || missing.get() <= 0) return; // got its hits in time
+        if (this.countNotSent(qm.getGuid()) == 0) return; // every neighbor already has it
+
+        QueryMessage ring = this.rings.getOrDefault(qm.getGuid(), qm);
+        this.workers.execute(GnuWorkers.Activity.QUERIES,
+                () -> this.query(ring, GnuConfig.WALKERS.get(qm.getQuery().getQueryType())));
+    }
+
+    private void forgetQuery(int guid) {
+        this.missingHits.remove(guid);
+        this.unansweredUsers.remove(guid);
+        this.rings.remove(guid);
+    }
+
+    /**
+     * Our query needs no more hits (we got them, or stopped waiting for them): no more rings or hedging, and the nodes
+     * it went to stop passing it on.
+     */
+    public void cancel(int guid) {
+        this.forgetQuery(guid);
+        this.cancel(guid, this.id);
+    }
+
+    /**
+     * --->> Cancel (to the nodes the query went to, except the one that told us)
+     */
+    private void cancel(int guid, int from) {
+        if (!this.sentTo.cancel(guid)) return; // already cancelled
+        CancelMessage cancelMsg = new CancelMessage(this.addr, this.id, guid);
+        for (int neighId : this.sentTo.getSent(guid)) {
+            GnuNodeInfo neighInfo = this.neighborOrLeaf(neighId);
+            if (neighId == from || neighInfo == null) continue;
+            this.workers.execute(GnuWorkers.Activity.QUERIES, () -> {
+                try {
+                    this.connections.send(neighInfo.getAddr(), cancelMsg);
+                } catch (IOException e) {
+                    System.err.println("Couldn't pass the cancel of query " + guid + " on to " + neighId);
+                }
+            });
+        }
     }
 
     public Query genQueryUser(int neededHits, String queryString, long queryTimestamp) {
         return new UserQuery(this.addr, this.id, neededHits, queryString, queryTimestamp);
     }
 
+    public Query genQueryMultiUser(Map<String, Long> users) {
+        return new MultiUserQuery(this.addr, this.id, users);
+    }
+
     public Query genQueryTag(int neededHits, String queryString) {
         return new TagQuery(this.addr, this.id, neededHits, queryString);
     }
@@ -278,47 +777,87 @@ public class GnuNode implements Runnable {
         }
          */
 
-        for (Map.Entry<Integer, GnuNodeInfo> e : this.neighbors.entrySet()) {
-            GnuNodeInfo peerNode = e.getValue();
+        // all neighbors are probed at once and every probe has its own deadline, so a round takes at most
+        // PING_TIMEOUT no matter how many neighbors we have (or how many of them are dead)
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        for (Map.Entry<Integer, GnuNodeInfo> e : this.neighbors.entrySet())
+            probes.add(this.probe(e.getKey(), e.getValue()));
+        for (Map.Entry<Integer, GnuNodeInfo> e : this.leaves.entrySet())
+            probes.add(this.probe(e.getKey(), e.getValue()));
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).join();
+
+        // what our neighbors (and leaves) told us travels one hop further with our next pongs
+        this.rebuildDeeperBlooms();
+
+        // neighbors get our new capacity with the next PONG/NEIGH we send them
+        if (this.capacityEstimator != null)
+            this.capacity = this.capacityEstimator.estimate();
+
+        // connections to nodes we stopped talking to (e.g. query sources) aren't worth keeping
+        this.connections.closeIdle();
+    }
+
+    private CompletableFuture<Void> probe(int neighId, GnuNodeInfo peerNode) {
+        GnuMessage pingMsg = new PingMessage(this.addr, peerNode.getBloomVersion());
+        CompletableFuture<GnuMessage> reply = new CompletableFuture<>();
+        // only connecting (when there is no live connection yet) and sending take up a worker
+        boolean started = this.workers.execute(GnuWorkers.Activity.PINGS, () -> {
+            long sent = System.nanoTime();
+            CompletableFuture<GnuMessage> request = this.connections.requestAsync(peerNode.getAddr(), pingMsg);
+            request.whenComplete((pong, ex) -> {
+                if (ex != null) {
+                    reply.completeExceptionally(ex);
+                    return;
+                }
+                if (this.capacityEstimator != null) this.capacityEstimator.recordRtt(System.nanoTime() - sent);
+                reply.complete(pong);
+            });
+            reply.whenComplete((pong, ex) -> request.cancel(false)); // deadline passed => forget the request
+        });
+        // we are the ones overloaded: no ping this round, and no missed pong held against them
+        if (!started) return CompletableFuture.completedFuture(null);
+
+        synchronized (peerNode) {
+            // we will determine their state now (a pong is only handled after this)
             if (peerNode.state == GnuNodeInfo.ALIVE)
                 peerNode.setDetermining();
+        }
 
-            // we will determine their state now
-            GnuMessage pingMsg = GnuNodeCMD.PING.getMessage(this.addr);
-
-            // try to connect and send the request
-            PongMessage reply;
-            try (Socket sockPing = new Socket(peerNode.address.getAddress(), peerNode.address.getPort())) {
-                sockPing.setSoTimeout(GnuNode.RECEIVETIMEOUT);
-                ObjectOutputStream oos = new ObjectOutputStream(sockPing.getOutputStream());
-                oos.flush();
-                ObjectInputStream ois = new ObjectInputStream(sockPing.getInputStream());
-                oos.writeObject(pingMsg);
-                oos.flush();
-                // try to receive the reply (Pong)
-                reply = (PongMessage) ois.readObject();
-            } catch (ClassNotFoundException | IOException exception) {
-                peerNode.setDead();
-                if (peerNode.isDead()) {
-                    // peer is really dead
-                    System.err.println("Failed to connect to " + e.getKey() + ". Is dead and not our neighbor anymore.");
-                    this.neighbors.remove(e.getKey());
-                } else {
-                    System.err.println("Failed to connect to " + e.getKey() + ". May be dead.");
-                }
-                continue;
-            }
+        return reply.orTimeout(GnuNode.PING_TIMEOUT, TimeUnit.MILLISECONDS).handle((pong, ex) -> {
+            if (ex == null && pong instanceof PongMessage pongMsg) this.handlePong(peerNode, pongMsg);
+            else this.handleMissedPong(neighId, peerNode);
+            return null;
+        });
+    }
 
-            // process the reply
+    private void handlePong(GnuNodeInfo peerNode, PongMessage reply) {
+        synchronized (peerNode) {
             peerNode.setAlive(); // peer is good
             // update the hosts cache
-            this.hostsCache.addAll(reply.getNeighAddrs());
+            this.hostsCache.update(reply.getNeighAddrs());
             // update node info
             peerNode.updateInfo(reply);
         }
     }
 
+    private void handleMissedPong(int neighId, GnuNodeInfo peerNode) {
+        boolean dead;
+        synchronized (peerNode) {
+            peerNode.setDead();
+            dead = peerNode.isDead();
+        }
+
+        if (dead) {
+            // peer is really dead
+            System.err.println("Failed to connect to " + neighId + ". Is dead and not our neighbor anymore.");
+            this.removeNeigh(neighId);
+        } else {
+            System.err.println("Failed to connect to " + neighId + ". May be dead.");
+        }
+    }
+
     protected double getSatisfaction() {
+        if (this.leaf) return Math.min(1.0, (double) this.neighbors.size() / GnuNode.LEAF_ULTRAPEERS);
         if (this.neighbors.size() < MIN_NEIGH) return 0.0;
 
         double satisfaction = 0.0;
@@ -341,10 +880,12 @@ public class GnuNode implements Runnable {
         try {
             //System.out.println("Starting check topology");
             // clean up host caches
-            this.hostsCache.removeIf(x -> !x.isAlive);
+            this.hostsCache.prune();
+            this.checkRole();
             double satisfaction = this.getSatisfaction();
             if (satisfaction < 1.0) {
-                this.addNewNeighs();
+                if (this.leaf) this.addUltrapeers();
+                else this.addNewNeighs();
             }
             // schedule next topology check with new delay according to satisfaction level
             this.scheduleNextTopology(satisfaction);
@@ -359,94 +900,177 @@ public class GnuNode implements Runnable {
         for (GnuNodeInfo ni : this.neighbors.values())
             neighborsAdrr.add(ni.getAddr());
         List<HostsCacheInfo> possibleNeighbors = new ArrayList<>();
-        for (HostsCacheInfo i : this.hostsCache) {
-            if (!neighborsAdrr.contains(i.address))
-                possibleNeighbors.add(i);
+        // select a small random subset of possible neighbors from our peer sampling view (spread over the whole
+        // overlay), or from the best scored hosts of the cache if the view has none
+        for (SampledPeer peer : this.sampler.sample(PeerSampler.VIEW_SIZE)) {
+            if (!neighborsAdrr.contains(peer.address()) && possibleNeighbors.size() < 10)
+                possibleNeighbors.add(peer.toHostsCacheInfo());
+        }
+        if (possibleNeighbors.isEmpty()) {
+            for (HostsCacheInfo i : this.hostsCache.best(10 + neighborsAdrr.size())) {
+                if (!neighborsAdrr.contains(i.address) && possibleNeighbors.size() < 10)
+                    possibleNeighbors.add(i);
+            }
         }
         if (possibleNeighbors.isEmpty()) return;
-        // select a small random subset of these possible neighbors from the cache
-        Collections.shuffle(possibleNeighbors);
-        possibleNeighbors = possibleNeighbors.subList(0, Math.min(possibleNeighbors.size(), 10));
 
         // get node with the most capacity grater than ours (if any)
         Optional<HostsCacheInfo> maxCapNodeOp = possibleNeighbors.stream().max(Comparator.comparingInt(x -> x.capacity));
         if (maxCapNodeOp.isPresent()) {
-            HostsCacheInfo maxCapNode = maxCapNodeOp.get();
-            if (!this.pickNeighborToDrop(maxCapNode.address))
-                maxCapNode.isAlive = false;
+            this.connectTo(maxCapNodeOp.get().address);
             return;
         }
         // otherwise select random one
         HostsCacheInfo pairNode = possibleNeighbors.get(new Random().nextInt(possibleNeighbors.size()));
-        if (!this.pickNeighborToDrop(pairNode.address))
-            pairNode.isAlive = false;
+        this.connectTo(pairNode.address);
+    }
+
+    /**
+     * One peer sampling round: what we get is also worth remembering in the host cache.
+     */
+    private void gossip() {
+        try {
+            List<SampledPeer> received = this.sampler.shuffle(this.capacity);
+            if (received != null) this.hostsCache.update(received.stream().map(SampledPeer::toHostsCacheInfo).toList());
+        } catch (Exception e) {
+            // a periodic task that throws is never run again
+            e.printStackTrace();
+        }
+    }
+
+    private void maintainDht() {
+        try {
+            this.dht.maintain(this.peerObserver == null ? Collections.emptySet() : this.peerObserver.getHeldUsers());
+        } catch (Exception e) {
+            // a periodic task that throws is never run again
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Server dispatcher loop: accepts connections and spawns a thread to handle them.
+     * Leaves attach to the best ultrapeers they know of.
+     */
+    protected void addUltrapeers() {
+        if (this.neighbors.isEmpty()) this.bootstrap();
+
+        Set<InetSocketAddress> ultrapeerAddrs = new HashSet<>();
+        for (GnuNodeInfo ni : this.neighbors.values())
+            ultrapeerAddrs.add(ni.getAddr());
+        for (HostsCacheInfo candidate : this.hostsCache.best(GnuConfig.HOST_CACHE_SIZE)) {
+            if (this.neighbors.size() >= GnuNode.LEAF_ULTRAPEERS) return;
+            // nodes that aren't ultrapeers (or are full) say no
+            if (!ultrapeerAddrs.contains(candidate.address))
+                this.connectTo(candidate.address);
+        }
+    }
+
+    /**
+     * Two-tier topology: leaves that have been up long enough and can take the load (measured, not the estimator's
+     * first guess) or that no ultrapeer takes become ultrapeers, and ultrapeers whose capacity falls below half of that
+     * go back to being leaves if there are other ultrapeers around.
+     */
+    protected void checkRole() {
+        if (!GnuConfig.TIERED) return;
+        if (this.leaf) {
+            // no ultrapeer took us (e.g. there are none yet): somebody has to route
+            boolean orphan = this.neighbors.isEmpty();
+            boolean measured = this.capacityEstimator == null || this.capacityEstimator.isMeasured();
+            if (orphan || (measured && this.capacity >= GnuConfig.ULTRAPEER_CAPACITY
+                    && System.currentTimeMillis() - this.startTime >= GnuConfig.ULTRAPEER_UPTIME)) {
+                // our ultrapeers let go of us as a leaf, then we join the overlay as one of them
+                this.dropAll(this.neighbors);
+                this.leaf = false;
+                this.bootstrap();
+            }
+        } else if (this.capacity < GnuConfig.ULTRAPEER_CAPACITY / 2 && !this.neighbors.isEmpty()) {
+            // our leaves and neighbors find others
+            this.dropAll(this.leaves);
+            this.dropAll(this.neighbors);
+            this.leaf = true;
+            this.bootstrap();
+        }
+    }
+
+    /**
+     * Runs the server event loop (on this thread) until interrupted.
      */
     @Override
     public void run() {
+        // a first shuffle (with the bootstrap node if we know nobody) gives us random nodes to join through
+        this.gossip();
         this.bootstrap();
 
         // schedule pings
-        ScheduledExecutorService pingScheduler = Executors.newSingleThreadScheduledExecutor();
+        ScheduledExecutorService pingScheduler = Executors.newSingleThreadScheduledExecutor(this.workers.threadFactory("gnu-ping"));
         pingScheduler.scheduleAtFixedRate(this::ping, 1, PING_FREQ, TimeUnit.SECONDS);
+        // snapshot the hosts we know, for the next start
+        pingScheduler.scheduleAtFixedRate(this::saveHosts, HOSTS_SAVE_FREQ, HOSTS_SAVE_FREQ, TimeUnit.SECONDS);
         // schedule query handling (fair-queued)
-        ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService queryExecutor = Executors.newSingleThreadExecutor(this.workers.threadFactory("gnu-sfq"));
         queryExecutor.execute(this::handleQueuedQueryLoop);
+        // schedule peer sampling
+        ScheduledExecutorService gossipScheduler = Executors.newSingleThreadScheduledExecutor(this.workers.threadFactory("gnu-gossip"));
+        gossipScheduler.scheduleWithFixedDelay(this::gossip, SHUFFLE_FREQ, SHUFFLE_FREQ, TimeUnit.SECONDS);
+        // schedule DHT upkeep (lookups block: on its own thread so pings stay on time)
+        ScheduledExecutorService dhtScheduler = Executors.newSingleThreadScheduledExecutor(this.workers.threadFactory("gnu-dht"));
+        if (this.dht != null) dhtScheduler.scheduleWithFixedDelay(this::maintainDht, 0, PING_FREQ, TimeUnit.SECONDS);
         // schedule topology adaptation
         this.scheduleNextTopology(this.getSatisfaction());
 
-        while (!Thread.currentThread().isInterrupted()) {
-            Socket reqSocket;
-            try {
-                reqSocket = this.serverSocket.accept();
-                ObjectInputStream ois = new ObjectInputStream(reqSocket.getInputStream());
-                ObjectOutputStream oos = new ObjectOutputStream(reqSocket.getOutputStream());
-                oos.flush();
-                // handle request (the thread is now responsible for the socket)
-                this.executors.execute(() -> this.handleMessage(ois, oos));
-            } catch (IOException e) {
-                System.err.println("Receiving failed with exception:");
-                e.printStackTrace();
-            }
-        }
+        this.server.run();
 
         pingScheduler.shutdownNow();
+        queryExecutor.shutdownNow();
+        dhtScheduler.shutdownNow();
+        gossipScheduler.shutdownNow();
+        this.checkTopologyScheduler.shutdownNow();
+        this.hedgeScheduler.shutdownNow();
+        this.hitAggregator.shutdown();
+        this.workers.shutdown();
+        this.connections.closeAll();
+        this.saveHosts();
     }
 
-    public void handleMessage(ObjectInputStream ois, ObjectOutputStream oos) {
-        GnuMessage reqMsg;
-        try {
-            reqMsg = (GnuMessage) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Invalid message");
-            e.printStackTrace();
-            return;
-        }
-        //System.out.println("RECEIVED " + reqMsg);
+    /**
+     * Called by the server event loop with a fully decoded message: it is processed on the request pool so the loop
+     * never waits on message handling.
+     */
+    @Override
+    public void handleMessage(GnuMessage reqMsg, GnuChannel channel) {
+        this.workers.execute(GnuWorkers.Activity.MESSAGES, () -> this.dispatchMessage(reqMsg, channel));
+    }
 
+    protected void dispatchMessage(GnuMessage reqMsg, GnuChannel channel) {
+        //System.out.println("RECEIVED " + reqMsg);
         switch (reqMsg.getCmd()) {
-            case PING -> this.handlePing(oos, reqMsg);
-            case NUMNEIGH -> this.handleNumNeigh(ois, oos, (NumNeighMessage) reqMsg);
-            case DROP -> this.handleDrop(oos, (DropMessage) reqMsg);
+            case PING -> this.handlePing(channel, (PingMessage) reqMsg);
+            case NUMNEIGH -> this.handleNumNeigh(channel, (NumNeighMessage) reqMsg);
+            case NEIGH -> {
+                NeighMessage neighMsg = (NeighMessage) reqMsg;
+                if (neighMsg.getNeighbors() != NeighMessage.REJECT) this.handleNeigh(neighMsg);
+            }
+            case DROP -> this.handleDrop(channel, (DropMessage) reqMsg);
             case QUERY -> this.handleQuery((QueryMessage) reqMsg);
             case QUERYHIT -> this.handleQueryHit((QueryHitMessage) reqMsg);
+            case BUSY -> this.handleBusy((BusyMessage) reqMsg);
+            case DHT -> this.handleDht(channel, (DhtMessage) reqMsg);
+            case LEAF -> this.handleLeaf(channel, (LeafMessage) reqMsg);
+            case SHUFFLE -> this.handleShuffle(channel, (ShuffleMessage) reqMsg);
+            case BOOTSTRAP -> this.handleBootstrap(channel, (BootstrapMessage) reqMsg);
+            case CANCEL -> this.handleCancel((CancelMessage) reqMsg);
         }
+    }
 
-        try {
-            oos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    protected void reply(GnuChannel channel, GnuMessage reqMsg, GnuMessage reply) throws IOException {
+        reply.setReqId(reqMsg.getReqId());
+        channel.send(reply);
     }
 
     /**
      * <<--- Ping
      * --->> Pong
      */
-    protected void handlePing(ObjectOutputStream oos, GnuMessage reqMsg) {
+    protected void handlePing(GnuChannel channel, PingMessage reqMsg) {
         // craft reply
         List<HostsCacheInfo> addresses = new ArrayList<>(List.of(new HostsCacheInfo(true, this.addr, this.capacity)));
         for (Map.Entry<Integer, GnuNodeInfo> entry : this.neighbors.entrySet()) {
@@ -455,21 +1079,56 @@ public class GnuNode implements Runnable {
                 addresses.add(new HostsCacheInfo(!entry.getValue().isDead(), entry.getValue().address, entry.getValue().capacity));
         }
         // reply to the same socket
-        GnuMessage pongMsg = new PongMessage(this.addr, addresses, this.capacity, this.bloomFilter);
+        GnuMessage pongMsg = this.buildPong(addresses, reqMsg.getBloomVersion());
         try {
-            oos.writeObject(pongMsg);
-            oos.flush();
+            this.reply(channel, reqMsg, pongMsg);
         } catch (IOException e) {
             System.err.println("Ping handling failed.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Sends as little of the filter as possible: nothing if the pinger has our current version, the flipped bits if
+     * we still remember the version it has and few bits changed since, the whole filter otherwise.
+     */
+    private PongMessage buildPong(List<HostsCacheInfo> addresses, int knownVersion) {
+        int version;
+        BloomBits.Snapshot current, previous;
+        synchronized (this) {
+            version = this.bloomVersion;
+            if (version == knownVersion)
+                return new PongMessage(this.addr, addresses, this.capacity, version,
+                        PongMessage.BloomDelta.UNCHANGED, null, 0, null);
+
+            synchronized (this.bloomHistory) {
+                current = this.bloomHistory.get(version);
+                previous = this.bloomHistory.get(knownVersion);
+            }
+            // the filter only changes under the node's lock, so these bits are exactly this version
+            if (current == null) current = BloomBits.snapshot(this.bloomLevels());
+        }
+        synchronized (this.bloomHistory) {
+            this.bloomHistory.putIfAbsent(version, current);
+        }
+
+        if (previous != null && previous.sameGeometry(current)) {
+            int[] flipped = BloomBits.diff(previous, current);
+            if (BloomBits.worthSparse(flipped.length, current))
+                return new PongMessage(this.addr, addresses, this.capacity, version,
+                        PongMessage.BloomDelta.SPARSE, null, knownVersion, flipped);
+        }
+        // a copy: the live filter may get bits that don't belong to this version before the pong is encoded
+        return new PongMessage(this.addr, addresses, this.capacity, version,
+                PongMessage.BloomDelta.FULL, current.toBloomFilters(), 0, null);
+    }
+
     /**
      * <<--- NumNeigh
      * --->> MyNeigh
+     * (the Neigh that follows arrives as a message of its own)
      */
-    protected void handleNumNeigh(ObjectInputStream ois, ObjectOutputStream oos, NumNeighMessage msg) {
+    protected void handleNumNeigh(GnuChannel channel, NumNeighMessage msg) {
         GnuNodeInfo maxEntry = null;
         for (Map.Entry<Integer, GnuNodeInfo> entry : this.neighbors.entrySet()) {
             if (maxEntry == null ||
@@ -479,28 +1138,91 @@ public class GnuNode implements Runnable {
         }
 
         try {
-            if (maxEntry == null
+            if (!this.takesNeighbors()) {
+                // leaves only attach to ultrapeers
+                GnuMessage reply = new MyNeighMessage(this.addr, this.id, MyNeighMessage.REJECT,
+                        this.capacity, null);
+                this.reply(channel, msg, reply);
+            } else if (maxEntry == null
                     || this.neighbors.size() < this.maxNeigh
                     || maxEntry.nNeighbors > msg.getNeighbors() + GnuNode.HYSTERESIS_FACTOR) {
                 GnuMessage reply = new MyNeighMessage(this.addr, this.id, this.neighbors.size(),
-                        this.capacity, this.bloomFilter);
-                oos.writeObject(reply);
-                oos.flush();
-                NeighMessage neighReply = (NeighMessage) ois.readObject();
-                if (neighReply.getNeighbors() == -1) return;
-                this.handleNeigh(neighReply);
+                        this.capacity, this.bloomFilter.toBloomFilter());
+                this.reply(channel, msg, reply);
             } else {
                 GnuMessage reply = new MyNeighMessage(this.addr, this.id, MyNeighMessage.REJECT,
                         this.capacity, null);
-                oos.writeObject(reply);
-                oos.flush();
+                this.reply(channel, msg, reply);
             }
-        } catch (ClassNotFoundException | IOException e) {
+        } catch (IOException e) {
             System.err.println("NUMNEIGH handling failed.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Whether other nodes can become our neighbors (or leaves): leaves only attach to others.
+     */
+    protected boolean takesNeighbors() {
+        return !this.leaf;
+    }
+
+    /**
+     * <<--- Bootstrap
+     * --->> Bootstrap (some of the best live hosts we know)
+     */
+    protected void handleBootstrap(GnuChannel channel, BootstrapMessage msg) {
+        List<HostsCacheInfo> hosts = new ArrayList<>(this.hostsCache.best(2 * GnuNode.BOOTSTRAP_HOSTS));
+        hosts.removeIf(host -> host.address.equals(msg.getAddr()));
+        // a random part of the best ones: joins spread over them instead of all going to the very best
+        Collections.shuffle(hosts);
+        hosts = new ArrayList<>(hosts.subList(0, Math.min(hosts.size(), GnuNode.BOOTSTRAP_HOSTS)));
+        this.hostsCache.update(msg.getHosts());
+
+        try {
+            this.reply(channel, msg, new BootstrapMessage(this.addr, hosts));
+        } catch (IOException e) {
+            System.err.println("BOOTSTRAP handling failed.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * <<--- Leaf
+     * --->> MyNeigh
+     */
+    protected void handleLeaf(GnuChannel channel, LeafMessage msg) {
+        boolean accept = this.takesNeighbors() && !this.neighbors.containsKey(msg.getId())
+                && (this.leaves.size() < GnuNode.MAX_LEAVES || this.leaves.containsKey(msg.getId()));
+        if (accept)
+            this.leaves.put(msg.getId(), new GnuNodeInfo(msg.getId(), 0, msg.getCapacity(), msg.getAddr(),
+                    msg.getBloomFilter()));
+
+        try {
+            GnuMessage reply = new MyNeighMessage(this.addr, this.id,
+                    accept ? this.leaves.size() : MyNeighMessage.REJECT, this.capacity,
+                    accept ? this.bloomFilter.toBloomFilter() : null);
+            this.reply(channel, msg, reply);
+        } catch (IOException e) {
+            System.err.println("LEAF handling failed.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * <<--- Shuffle
+     * --->> Shuffle
+     */
+    protected void handleShuffle(GnuChannel channel, ShuffleMessage msg) {
+        this.hostsCache.update(msg.getPeers().stream().map(SampledPeer::toHostsCacheInfo).toList());
+        try {
+            this.reply(channel, msg, this.sampler.handle(msg));
+        } catch (IOException e) {
+            System.err.println("SHUFFLE handling failed.");
+            e.printStackTrace();
+        }
+    }
+
     /**
      * <<--- Neigh
      */
@@ -528,13 +1250,9 @@ public class GnuNode implements Runnable {
 
             DropMessage dropMessage = new DropMessage(this.addr, this.id);
             GnuMessage reply;
-            try (Socket socket = new Socket(maxEntry.getValue().getInetAddr(), maxEntry.getValue().getPort())) {
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream iss = new ObjectInputStream(socket.getInputStream());
-                oos.writeObject(dropMessage);
-                oos.flush();
-                reply = (GnuMessage) iss.readObject();
-            } catch (ClassNotFoundException | IOException e) {
+            try {
+                reply = this.connections.request(maxEntry.getValue().getAddr(), dropMessage);
+            } catch (IOException e) {
                 System.err.println("NEIGH handling failed.");
                 return;
             }
@@ -542,7 +1260,7 @@ public class GnuNode implements Runnable {
             // we can temporarily go over the neighbor limit
             this.neighbors.put(neighReply.getId(), newNeighInfo);
             if (reply.getCmd() == GnuNodeCMD.DROPOK) {
-                this.neighbors.remove(maxEntry.getKey());
+                this.removeNeigh(maxEntry.getKey());
             }
         }
     }
@@ -551,17 +1269,17 @@ public class GnuNode implements Runnable {
      * <<--- Drop
      * --->> DropOk OR DropErr
      */
-    protected void handleDrop(ObjectOutputStream oos, DropMessage reqMsg) {
+    protected void handleDrop(GnuChannel channel, DropMessage reqMsg) {
         GnuMessage reply;
         try {
-            if (this.neighbors.size() > GnuNode.MIN_NEIGH) {
+            // leaves (and ultrapeers letting go of a leaf) always agree
+            if (this.leaf || this.leaves.containsKey(reqMsg.getId()) || this.neighbors.size() > GnuNode.MIN_NEIGH) {
                 reply = GnuNodeCMD.DROPOK.getMessage(this.addr);
-                this.neighbors.remove(reqMsg.getId());
+                this.removeNeigh(reqMsg.getId());
             } else {
                 reply = GnuNodeCMD.DROPERR.getMessage(this.addr);
             }
-            oos.writeObject(reply);
-            oos.flush();
+            this.reply(channel, reqMsg, reply);
         } catch (IOException e) {
             System.err.println("DROP handling failed.");
         }
@@ -573,20 +1291,96 @@ public class GnuNode implements Runnable {
     protected void handleQuery(QueryMessage reqMsg) {
         Query query = reqMsg.getQuery();
         int neighId = reqMsg.getId();
-        // queue query forwarding
-        if (this.neighbors.containsKey(neighId)) {
-            // TODO should be a single instruction
-            double virtTime;
-            double currentStartTag = this.currentStartTag.get();
-            if (currentStartTag > 0.0) {
-                // server is busy
-                virtTime = currentStartTag;
-            } else {
-                // server is mimir
-                virtTime = this.maxFinishTagServed.get();
+        // queue query forwarding (fair share by the neighbor's capacity)
+        if (this.sentTo.isCancelled(query.getGuid())) return;
+        GnuNodeInfo neighInfo = this.neighborOrLeaf(neighId);
+        if (neighInfo == null) {
+            // only a query straight from its source can be a shortcut query, and only from a node we sent hits to
+            // (that is how it learned of us); the rest isn't ours to handle (e.g. relayed by a neighbor we just
+            // dropped)
+            if (query.getTtl() == 1 && query.getSourceSocketAddr().equals(reqMsg.getAddr())
+                    && this.wasHitRecipient(reqMsg.getAddr()))
+                this.queryScheduler.enqueue(GnuNode.SHORTCUT_FLOW, GnuNode.SHORTCUT_WEIGHT, query);
+            return;
+        }
+        if (!this.queryScheduler.enqueue(neighId, neighInfo.capacity, query)
+                && GnuConfig.SHED_POLICY == SfqScheduler.ShedPolicy.REJECT) {
+            // their queue is full: tell them to send their queries somewhere else for a while
+            try {
+                this.connections.send(neighInfo.getAddr(),
+                        new BusyMessage(this.addr, this.id, query.getGuid(), GnuNode.BUSY_BACKOFF));
+            } catch (IOException e) {
+                System.err.println("Couldn't tell neighbor " + neighId + " we are busy");
             }
-            this.neighbors.get(neighId).queueQuery(query, virtTime);
-            this.querySemaphore.release();
+        }
+    }
+
+    /**
+     * <<--- Query (straight from its source, ttl 1: we are one of its shortcuts; queued under SHORTCUT_FLOW)
+     * --->> QueryHit (straight to its source, if we have anything)
+     * Never passed on.
+     */
+    private void handleShortcutQuery(Query query) {
+        List<Result> results = this.lookup(query);
+        if (results.isEmpty()) return;
+        QueryHitMessage qhm = new QueryHitMessage(this.addr, query.getGuid(), results);
+        this.recordHitRecipient(query.getSourceSocketAddr());
+        Runnable send = () -> {
+            try {
+                this.connections.send(query.getSourceSocketAddr(), qhm);
+            } catch (IOException e) {
+                System.err.println("Couldn't answer shortcut query " + query.getGuid());
+            }
+        };
+        // too many hits waiting for a worker: these go out from here rather than being lost
+        if (!this.workers.execute(GnuWorkers.Activity.HITS, send)) send.run();
+    }
+
+    /**
+     * <<--- Cancel
+     * --->> Cancel (to the nodes we passed the query on to)
+     */
+    protected void handleCancel(CancelMessage reqMsg) {
+        this.cancel(reqMsg.getGuid(), reqMsg.getId());
+        this.queryScheduler.removeQuery(reqMsg.getGuid());
+    }
+
+    private GnuNodeInfo neighborOrLeaf(int id) {
+        GnuNodeInfo info = this.neighbors.get(id);
+        return (info != null) ? info : this.leaves.get(id);
+    }
+
+    /**
+     * <<--- Busy
+     */
+    protected void handleBusy(BusyMessage reqMsg) {
+        GnuNodeInfo neighInfo = this.neighbors.get(reqMsg.getId());
+        if (neighInfo != null)
+            neighInfo.busyUntil = System.currentTimeMillis() + reqMsg.getBackoff();
+    }
+
+    /**
+     * <<--- Dht
+     * --->> Dht OR QueryHit (if the op has a reply)
+     */
+    protected void handleDht(GnuChannel channel, DhtMessage reqMsg) {
+        if (this.dht == null) return;
+        GnuMessage reply;
+        if (reqMsg.getOp() == DhtMessage.Op.QUERY) {
+            // someone that found us in the DHT as a holder of the user's posts
+            reply = new QueryHitMessage(this.addr, reqMsg.getGuid(), this.lookup(QueryType.USER,
+                    reqMsg.getUsername(), reqMsg.getSince(),
+                    () -> this.peerObserver.getUserResults(reqMsg.getUsername(), reqMsg.getSince())));
+        } else {
+            reply = this.dht.handle(reqMsg);
+        }
+        if (reply == null) return;
+
+        try {
+            this.reply(channel, reqMsg, reply);
+        } catch (IOException e) {
+            System.err.println("DHT handling failed.");
+            e.printStackTrace();
         }
     }
 
@@ -594,75 +1388,214 @@ public class GnuNode implements Runnable {
      * <<--- QueryHit
      */
     protected void handleQueryHit(QueryHitMessage reqMsg) {
-        List<Result> hitPosts = reqMsg.getResultSet();
-        this.peerObserver.handleNewResults(reqMsg.getGuid(), hitPosts);
+        int guid = reqMsg.getGuid();
+        Integer upstream = this.sentTo.getUpstream(guid);
+        if (GnuConfig.REVERSE_HITS && upstream != null && upstream != this.id.intValue()) {
+            // someone else's query: merge and pass on
+            this.hitCache.offer(guid, reqMsg.getResultSet());
+            this.hitAggregator.add(guid, reqMsg.getResultSet());
+            return;
+        }
+        boolean ours = (upstream != null && upstream == this.id.intValue()) || this.missingHits.containsKey(guid)
+                || this.unansweredUsers.containsKey(guid);
+        if (!ours) {
+            // someone else's query whose way back we lost: these aren't posts for our timeline
+            System.err.println("Dropped hits of unknown query " + guid);
+            return;
+        }
+
+        // whoever answered our query straight (not a neighbor relaying hits) is worth asking first next time
+        if (!reqMsg.getResultSet().isEmpty() && !this.isNeighborOrLeaf(reqMsg.getAddr()))
+            this.shortcuts.recordHit(reqMsg.getAddr());
+        this.deliverHits(guid, reqMsg.getResultSet());
     }
 
-    private void handleQueuedQuery(QueuedQuery queuedQuery) {
-        this.currentStartTag.set(queuedQuery.getStartTag());
+    private boolean isNeighborOrLeaf(InetSocketAddress address) {
+        for (GnuNodeInfo nodeInfo : this.neighbors.values()) {
+            if (nodeInfo.getAddr().equals(address)) return true;
+        }
+        for (GnuNodeInfo nodeInfo : this.leaves.values()) {
+            if (nodeInfo.getAddr().equals(address)) return true;
+        }
+        return false;
+    }
+
+    private void deliverHits(int guid, List<Result> hitPosts) {
+        int answered = hitPosts.size();
+        Set<String> unanswered = this.unansweredUsers.get(guid);
+        if (unanswered != null) {
+            // multi-user query: what counts is the users that answered
+            answered = 0;
+            for (Result result : hitPosts) {
+                if (unanswered.remove(result.author)) ++answered;
+            }
+        }
+        AtomicInteger missing = this.missingHits.get(guid);
+        if (missing != null && missing.addAndGet(-answered) <= 0)
+            this.forgetQuery(guid); // no hedging or wider rings needed
+        if (this.peerObserver != null) this.peerObserver.handleNewResults(guid, hitPosts);
+    }
+
+    /**
+     * --->> QueryHit (to the neighbor the query came from)
+     */
+    private void sendHitsUpstream(int guid, List<Result> results) {
+        Integer upstream = this.sentTo.getUpstream(guid);
+        if (upstream != null && upstream == this.id.intValue()) {
+            // our own query came back around
+            this.deliverHits(guid, results);
+            return;
+        }
+
+        GnuNodeInfo upstreamInfo = (upstream == null) ? null : this.neighborOrLeaf(upstream);
+        if (upstreamInfo == null) {
+            System.err.println("Lost the way back for the hits of query " + guid);
+            return;
+        }
+        QueryHitMessage qhm = new QueryHitMessage(this.addr, guid, results);
+        this.recordHitRecipient(upstreamInfo.getAddr());
+        Runnable send = () -> {
+            try {
+                this.connections.send(upstreamInfo.getAddr(), qhm);
+            } catch (IOException e) {
+                System.err.println("Couldn't pass hits on to neighbor " + upstreamInfo.getId());
+            }
+        };
+        if (!this.workers.execute(GnuWorkers.Activity.HITS, send)) send.run();
+    }
+
+    private void recordHitRecipient(InetSocketAddress address) {
+        synchronized (this.hitRecipients) {
+            this.hitRecipients.put(address, Boolean.TRUE);
+        }
+    }
+
+    private boolean wasHitRecipient(InetSocketAddress address) {
+        synchronized (this.hitRecipients) {
+            return this.hitRecipients.containsKey(address);
+        }
+    }
 
+    private void handleQueuedQuery(QueuedQuery queuedQuery) {
         Query query = queuedQuery.getQuery();
-        // TODO this is only searching by username
-        if (this.bloomFilter.mightContain(query.getQueryString()) && this.peerObserver != null) {
-            // gather results
-            List<Result> results = this.peerObserver.handleQuery(query);
-            if (!results.isEmpty()) {
-                // got a hit
-                query.decreaseNeededHits(results.size());
-                try (Socket sendSkt = new Socket(query.getSourceAddr(), query.getSourcePort())) {
-                    ObjectOutputStream oss = new ObjectOutputStream(sendSkt.getOutputStream());
-                    oss.flush();
-                    ObjectInputStream ois = new ObjectInputStream(sendSkt.getInputStream());
-                    QueryHitMessage qhm = new QueryHitMessage(this.addr, query.getGuid(), results);
-                    oss.writeObject(qhm);
-                    oss.flush();
-                } catch (Exception e) {
-                    System.err.println("Couldn't connect to initiator peer");
-                    e.printStackTrace();
-                }
+        if (this.sentTo.isCancelled(query.getGuid())) return; // cancelled while it was queued
+        if (queuedQuery.getHopId() == GnuNode.SHORTCUT_FLOW) {
+            this.handleShortcutQuery(query);
+            return;
+        }
+        if (GnuConfig.REVERSE_HITS) this.sentTo.setUpstream(query.getGuid(), queuedQuery.getHopId());
+        // gather results: ours (maybe cached) count as hits, the ones we saw pass by are only passed along
+        List<Result> ours = this.lookup(query);
+        if (!ours.isEmpty()) query.addHits(ours);
+        List<Result> results = new ArrayList<>(ours);
+        results.addAll(this.relayedHits(query, ours));
+        if (!results.isEmpty()) {
+            // got a hit
+            if (GnuConfig.REVERSE_HITS) {
+                this.hitAggregator.add(query.getGuid(), results);
+            } else {
+                // delivered on its own so a slow initiator doesn't hold up forwarding
+                QueryHitMessage qhm = new QueryHitMessage(this.addr, query.getGuid(), results);
+                this.recordHitRecipient(query.getSourceSocketAddr());
+                Runnable send = () -> {
+                    try {
+                        this.connections.send(query.getSourceSocketAddr(), qhm);
+                    } catch (IOException e) {
+                        System.err.println("Couldn't connect to initiator peer");
+                        e.printStackTrace();
+                    }
+                };
+                if (!this.workers.execute(GnuWorkers.Activity.HITS, send)) send.run();
             }
         }
-        // maybe forward
-        if (query.decreaseTtl() > 0 && query.getNeededHits() > 0) {
+        if (this.leaf) return; // leaves never pass queries on
+
+        this.sentTo.markSent(query.getGuid(), queuedQuery.getHopId());
+        // our leaves that might have it answer too
+        this.queryLeaves(query);
+        // maybe forward (the source may have cancelled it while we looked it up)
+        if (query.decreaseTtl() > 0 && query.getNeededHits() > 0 && !this.sentTo.isCancelled(query.getGuid())) {
             // didn't get a hit (don't sub or result list is empty)
-            if (!this.sentTo.containsKey(query.getGuid()))
-                this.sentTo.put(query.getGuid(), new HashSet<>());
-            this.sentTo.get(query.getGuid()).add(queuedQuery.getHopId());
+            // hits only come back through us when they follow the query path
+            if (GnuConfig.REVERSE_HITS) this.hitCache.expect(query);
 
             QueryMessage relayMsg = new QueryMessage(this.addr, this.id, query);
             this.query(relayMsg);
         }
+    }
+
+    private List<Result> lookup(Query query) {
+        if (query.getQueryType() != QueryType.MULTI_USER) {
+            long since = (query instanceof UserQuery userQuery) ? userQuery.getLatestDate() : Query.ALLDATE;
+            return this.lookup(query.getQueryType(), query.getQueryString(), since,
+                    () -> this.peerObserver.handleQuery(query));
+        }
 
-        synchronized (this.maxFinishTagServed) {
-            if (queuedQuery.getFinishTag() > this.maxFinishTagServed.get()) {
-                this.maxFinishTagServed.set(queuedQuery.getFinishTag());
+        // every user on its own
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Long> user : ((MultiUserQuery) query).getUsers().entrySet()) {
+            results.addAll(this.lookup(QueryType.USER, user.getKey(), user.getValue(),
+                    () -> this.peerObserver.getUserResults(user.getKey(), user.getValue())));
+        }
+        return results;
+    }
+
+    /**
+     * Hits of other nodes we saw pass through for what the query asks. They are only what some of the holders had,
+     * so they are sent back but don't count as hits: the query keeps going to the others.
+     */
+    private List<Result> relayedHits(Query query, List<Result> ours) {
+        List<Result> cached = new ArrayList<>();
+        if (query.getQueryType() != QueryType.MULTI_USER) {
+            long since = (query instanceof UserQuery userQuery) ? userQuery.getLatestDate() : Query.ALLDATE;
+            List<Result> hits = this.hitCache.get(query.getQueryType(), query.getQueryString(), since);
+            if (hits != null) cached.addAll(hits);
+        } else {
+            for (Map.Entry<String, Long> user : ((MultiUserQuery) query).getUsers().entrySet()) {
+                List<Result> hits = this.hitCache.get(QueryType.USER, user.getKey(), user.getValue());
+                if (hits != null) cached.addAll(hits);
             }
         }
+
+        Set<Integer> known = new HashSet<>();
+        for (Result result : ours) known.add(result.guid);
+        cached.removeIf(result -> !known.add(result.guid));
+        return cached;
+    }
+
+    /**
+     * From the result cache if it has them, else from our posts (if we might have any).
+     */
+    private List<Result> lookup(QueryType type, String queryString, long since, Supplier<List<Result>> ours) {
+        List<Result> cached = this.resultCache.get(type, queryString, since);
+        if (cached != null) return cached;
+        if (this.peerObserver == null || !this.bloomFilter.mightContain(queryString)) return Collections.emptyList();
+
+        List<Result> results = ours.get();
+        this.resultCache.put(type, queryString, since, results);
+        return results;
     }
 
     private void handleQueuedQueryLoop() {
         try {
             while (!Thread.interrupted()) {
-                this.querySemaphore.acquire();
-
-                double earliest = -1.0;
-                GnuNodeInfo frien = null;
-                for (GnuNodeInfo i : this.neighbors.values()) {
-                    QueuedQuery qq = i.peekNextQuery();
-                    if (qq == null) continue;
-                    if (frien == null || qq.getStartTag() < earliest) {
-                        earliest = qq.getStartTag();
-                        frien = i;
+                // at most SFQ_DEPTH queries are handled at once
+                QueuedQuery queuedQuery = this.queryScheduler.take();
+                boolean started = this.workers.execute(GnuWorkers.Activity.DISPATCH, () -> {
+                    long start = System.nanoTime();
+                    try {
+                        this.handleQueuedQuery(queuedQuery);
+                        if (this.capacityEstimator != null)
+                            this.capacityEstimator.recordQuery(System.nanoTime() - start);
+                    } finally {
+                        this.queryScheduler.complete(queuedQuery);
                     }
+                });
+                if (!started) {
+                    // dropped: its slot must not stay taken
+                    System.err.println("Dropped query " + queuedQuery.getQuery().getGuid());
+                    this.queryScheduler.complete(queuedQuery);
                 }
-                // very weird condition
-                if (frien == null) {
-                    System.err.println("Unexpected null when looking for the next query to handle.");
-                    continue;
-                }
-
-                QueuedQuery queuedQuery = frien.popNextQuery();
-                this.executors.execute(() -> this.handleQueuedQuery(queuedQuery));
             }
         } catch (InterruptedException e) {
             // bye bye
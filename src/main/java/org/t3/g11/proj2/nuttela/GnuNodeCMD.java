@@ -4,6 +4,7 @@ import org.t3.g11.proj2.nuttela.message.GnuMessage;
 
 import java.net.InetSocketAddress;
 
+// the binary codec sends the ordinal: new commands go at the end
 public enum GnuNodeCMD {
     NEIGH, // id, address, n_neigh, capacity
     NUMNEIGH,
@@ -14,7 +15,13 @@ public enum GnuNodeCMD {
     PING,
     PONG,
     QUERY,
-    QUERYHIT;
+    QUERYHIT,
+    BUSY, // id, guid, backoff
+    DHT, // op, then the fields of that op
+    LEAF, // id, capacity, bloom filter
+    SHUFFLE, // peers (address, capacity, age)
+    BOOTSTRAP, // hosts
+    CANCEL; // id, guid
 
     public GnuMessage getMessage(InetSocketAddress addr) {
         return new GnuMessage(this, addr);
@@ -1,12 +1,14 @@
 package org.t3.g11.proj2.nuttela;
 
-import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import org.t3.g11.proj2.nuttela.message.PongMessage;
-import org.t3.g11.proj2.nuttela.message.query.Query;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 public class GnuNodeInfo {
     public static final int DEAD = -1;
@@ -16,15 +18,16 @@ public class GnuNodeInfo {
 
     public static final int BLOOMSIZE = 500;
     public static final float BLOOMMISSCHANCE = 0.01f;
-
-    private final MinMaxPriorityQueue<QueuedQuery> queuedQuerries;
+    public static final int UNKNOWN_BLOOM_VERSION = -1;
+    public static final double MAX_LEVEL_FPP = 0.1; // filters more saturated than this don't tell us anything
 
     public int id;
     public int nNeighbors;
     public int capacity;
     public InetSocketAddress address;
-    public BloomFilter<String> bloomFilter;
-    public int state; // -1 - dead; 0 - maybe dead; 1 - alive; 2 - determining;
+    private volatile Blooms blooms; // replaced as a whole: read without a lock while PONGs update it
+    public volatile int state; // -1 - dead; 0 - maybe dead; 1 - alive; 2 - determining;
+    public volatile long busyUntil = 0; // they told us to back off (BUSY) until then
 
     public GnuNodeInfo(int id, int nNeighbors, int capacity, InetSocketAddress address, BloomFilter<String> bloomFilter) {
         this.id = id;
@@ -32,15 +35,116 @@ public class GnuNodeInfo {
         this.capacity = capacity;
         this.state = 1;
         this.address = address;
-        this.bloomFilter = bloomFilter;
+        // filters from NEIGH/MYNEIGH come unversioned
+        this.blooms = new Blooms(bloomFilter, List.of(), GnuNodeInfo.UNKNOWN_BLOOM_VERSION);
+    }
 
-        this.queuedQuerries = MinMaxPriorityQueue.create();
+    /**
+     * Their own filter, what they have at depth 2, 3, ... (from PONG) and the version of it all.
+     */
+    private record Blooms(BloomFilter<String> own, List<BloomFilter<String>> deeper, int version) {
     }
 
     public void updateInfo(PongMessage pongMessage) {
         this.nNeighbors = pongMessage.getNNeighbors();
+        this.capacity = pongMessage.getCapacity(); // measured: it changes
         this.address = pongMessage.getAddr();
-        this.bloomFilter = pongMessage.getBloomFilter();
+        switch (pongMessage.getBloomDelta()) {
+            case UNCHANGED -> {
+            }
+            case SPARSE -> {
+                // not the version they diffed against (or the flips don't fit it): ask for the whole filter next time
+                Blooms blooms = this.blooms;
+                if (blooms.own() == null || blooms.version() != pongMessage.getBaseVersion()) {
+                    this.forgetBloomVersion();
+                    return;
+                }
+                try {
+                    List<BloomFilter<String>> levels = BloomBits.flip(this.bloomLevels(), pongMessage.getFlippedBits());
+                    this.setBloomLevels(levels, pongMessage.getBloomVersion());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Bad bloom filter delta from " + this.id + ": " + e.getMessage());
+                    this.forgetBloomVersion();
+                }
+            }
+            case FULL -> {
+                List<BloomFilter<String>> levels = pongMessage.getBloomFilters();
+                if (levels.isEmpty() || levels.contains(null)) {
+                    System.err.println("Bad bloom filters from " + this.id);
+                    this.forgetBloomVersion();
+                    return;
+                }
+                this.setBloomLevels(levels, pongMessage.getBloomVersion());
+            }
+        }
+    }
+
+    /**
+     * Their own filter first, then the deeper ones.
+     */
+    public List<BloomFilter<String>> bloomLevels() {
+        Blooms blooms = this.blooms;
+        List<BloomFilter<String>> levels = new ArrayList<>();
+        levels.add(blooms.own());
+        levels.addAll(blooms.deeper());
+        return levels;
+    }
+
+    public BloomFilter<String> getBloomFilter() {
+        return this.blooms.own();
+    }
+
+    public int getBloomVersion() {
+        return this.blooms.version();
+    }
+
+    // the ones below are only called from updateInfo (under the lock of this node info)
+
+    private void setBloomLevels(List<BloomFilter<String>> levels, int version) {
+        this.blooms = new Blooms(levels.get(0), List.copyOf(levels.subList(1, levels.size())), version);
+    }
+
+    private void forgetBloomVersion() {
+        Blooms blooms = this.blooms;
+        this.blooms = new Blooms(blooms.own(), blooms.deeper(), GnuNodeInfo.UNKNOWN_BLOOM_VERSION);
+    }
+
+    /**
+     * Hops to the closest node behind this neighbor that might have the key (1 is the neighbor itself), or
+     * Integer.MAX_VALUE if none seems to.
+     */
+    public int matchDepth(String key) {
+        Blooms blooms = this.blooms;
+        BloomFilter<String> own = blooms.own();
+        if (own != null && !GnuNodeInfo.isSaturated(own) && own.mightContain(key)) return 1;
+        List<BloomFilter<String>> deeper = blooms.deeper();
+        for (int i = 0; i < deeper.size(); ++i) {
+            BloomFilter<String> level = deeper.get(i);
+            if (!GnuNodeInfo.isSaturated(level) && level.mightContain(key)) return i + 2;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * If the node itself might have the key. Unlike matchDepth, a saturated filter still counts: it says yes to
+     * almost anything, but never no to what they have.
+     */
+    public boolean mightHold(String key) {
+        BloomFilter<String> own = this.blooms.own();
+        return own != null && own.mightContain(key);
+    }
+
+    /**
+     * A node's own filter folds all its content onto the common geometry, so it fills up as the node gets more.
+     */
+    public static boolean isSaturated(BloomFilter<String> filter) {
+        return filter.expectedFpp() > GnuNodeInfo.MAX_LEVEL_FPP;
+    }
+
+    public static BloomFilter<String> newBloomFilter() {
+        // every node's filters have the same geometry, so the deeper ones can be merged from their neighbors'
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                GnuNodeInfo.BLOOMSIZE, GnuNodeInfo.BLOOMMISSCHANCE);
     }
 
     public int getId() {
@@ -55,6 +159,10 @@ public class GnuNodeInfo {
         return this.state == GnuNodeInfo.DEAD;
     }
 
+    public boolean isBusy() {
+        return System.currentTimeMillis() < this.busyUntil;
+    }
+
     public boolean isAlive() {
         return this.state == GnuNodeInfo.ALIVE;
     }
@@ -85,25 +193,4 @@ public class GnuNodeInfo {
     public int getPort() {
         return this.address.getPort();
     }
-
-    public void queueQuery(Query query, double virtTime) {
-        synchronized (this.queuedQuerries) {
-            final int weight = this.capacity;
-            QueuedQuery prevFinish = this.queuedQuerries.peekLast();
-            final double prevFinishTag = (prevFinish == null) ? 0.0 : prevFinish.getFinishTag();
-            this.queuedQuerries.add(new QueuedQuery(query, virtTime, prevFinishTag, weight, this.id));
-        }
-    }
-
-    public QueuedQuery peekNextQuery() {
-        synchronized (this.queuedQuerries) {
-            return this.queuedQuerries.peekFirst();
-        }
-    }
-
-    public QueuedQuery popNextQuery() {
-        synchronized (this.queuedQuerries) {
-            return this.queuedQuerries.poll();
-        }
-    }
 }
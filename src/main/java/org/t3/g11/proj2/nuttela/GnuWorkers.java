@@ -0,0 +1,111 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.util.EnumMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the node's blocking work. In platform mode this is a fixed pool (plus a cached one for the long waits); in
+ * virtual mode every task gets its own virtual thread from one shared executor, and each activity has its own
+ * concurrency limit so a flood of one kind of work can't take over the carriers. Only BACKLOG tasks per permit may
+ * wait for one: past that, new tasks of that activity are dropped instead of piling up as parked threads.
+ */
+public class GnuWorkers {
+    public enum Activity {
+        MESSAGES(256), // handling of incoming messages
+        DISPATCH(64), // queries the SFQ scheduler hands out (it already keeps them to its depth)
+        QUERIES(64), // query forwarding (walkers, rings, hedges, shortcuts, cancels)
+        HITS(64), // query-hit delivery
+        PINGS(32), // heartbeat probes
+        SEARCHES(16), // searches waiting for their results
+        LOOKUPS(16); // DHT lookups (searches wait on them, so they can't share their permits)
+
+        private final int limit;
+
+        Activity(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    public static final int BACKLOG = 4; // tasks that may wait for a permit, per permit
+
+    private final boolean virtual;
+    private final ExecutorService executor;
+    private final ExecutorService blocking; // platform mode only: work that mostly waits
+    private final EnumMap<Activity, Semaphore> permits = new EnumMap<>(Activity.class);
+    private final EnumMap<Activity, Semaphore> admissions = new EnumMap<>(Activity.class); // running or waiting
+    private final AtomicLong dropped = new AtomicLong();
+
+    public GnuWorkers(boolean virtual) {
+        this.virtual = virtual;
+        if (virtual) {
+            this.executor = Executors.newThreadPerTaskExecutor(this.threadFactory("gnu-worker"));
+            this.blocking = this.executor;
+            for (Activity activity : Activity.values()) {
+                this.permits.put(activity, new Semaphore(activity.limit));
+                this.admissions.put(activity, new Semaphore(activity.limit * (1 + GnuWorkers.BACKLOG)));
+            }
+        } else {
+            this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
+            this.blocking = Executors.newCachedThreadPool();
+        }
+    }
+
+    public boolean isVirtual() {
+        return this.virtual;
+    }
+
+    /**
+     * Tasks dropped so far because too many of their activity were waiting.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return false if the task was dropped (too much work of that activity already waiting)
+     */
+    public boolean execute(Activity activity, Runnable task) {
+        if (!this.virtual) {
+            if (activity == Activity.SEARCHES || activity == Activity.PINGS || activity == Activity.LOOKUPS)
+                this.blocking.execute(task);
+            else this.executor.execute(task);
+            return true;
+        }
+
+        // taken before the thread exists, so the backlog is bounded too (not only how many run at once)
+        Semaphore admission = this.admissions.get(activity);
+        if (!admission.tryAcquire()) {
+            long dropped = this.dropped.incrementAndGet();
+            System.err.println("Too much " + activity + " work waiting: task dropped (" + dropped + " so far)");
+            return false;
+        }
+        Semaphore activityPermits = this.permits.get(activity);
+        this.executor.execute(() -> {
+            activityPermits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                activityPermits.release();
+                admission.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * For the node's long-running loops and schedulers (and connection readers).
+     */
+    public ThreadFactory threadFactory(String name) {
+        if (this.virtual) return Thread.ofVirtual().name(name + "-", 0).factory();
+        return Thread.ofPlatform().name(name + "-", 0).daemon(true).factory();
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+        this.blocking.shutdownNow();
+    }
+}
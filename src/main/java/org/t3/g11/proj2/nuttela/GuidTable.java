@@ -0,0 +1,199 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which neighbors each query (by guid) was already sent to, and which one it came from, for a limited
+ * time. Entries live in generations: a new one is started every window / (GENERATIONS - 1) and the oldest is
+ * thrown away whole, so a guid is kept for at least the window after it was last touched and expiring costs
+ * nothing per entry.
+ * <p>
+ * Guids and neighbor ids stay primitive: each generation is an open-addressing table of guids whose values are
+ * small int arrays: the neighbor count, whether the upstream neighbor is known, the upstream neighbor, whether the
+ * query was cancelled and then the neighbors the query was sent to.
+ */
+public class GuidTable {
+    public static final int GENERATIONS = 4;
+
+    private static final int COUNT = 0;
+    private static final int HAS_UPSTREAM = 1;
+    private static final int UPSTREAM = 2;
+    private static final int CANCELLED = 3;
+    private static final int FIRST = 4;
+
+    private final long period;
+    private final Generation[] generations = new Generation[GuidTable.GENERATIONS]; // [current] is the newest
+    private int current = 0;
+    private long currentStart;
+
+    public GuidTable(long windowMillis) {
+        this.period = Math.max(1, windowMillis / (GuidTable.GENERATIONS - 1));
+        for (int i = 0; i < GuidTable.GENERATIONS; ++i)
+            this.generations[i] = new Generation();
+        this.currentStart = System.currentTimeMillis();
+    }
+
+    /**
+     * @return false if the query was already sent to that neighbor
+     */
+    public synchronized boolean markSent(int guid, int neighId) {
+        int[] set = this.touch(guid);
+        int count = set[GuidTable.COUNT];
+        for (int i = GuidTable.FIRST; i < GuidTable.FIRST + count; ++i) {
+            if (set[i] == neighId) return false;
+        }
+
+        if (GuidTable.FIRST + count == set.length) {
+            int[] bigger = new int[set.length * 2];
+            System.arraycopy(set, 0, bigger, 0, set.length);
+            set = bigger;
+            this.generations[this.current].put(guid, set);
+        }
+        set[GuidTable.FIRST + count] = neighId;
+        set[GuidTable.COUNT] = count + 1;
+        return true;
+    }
+
+    public synchronized boolean wasSent(int guid, int neighId) {
+        int[] set = this.find(guid);
+        if (set == null) return false;
+        for (int i = GuidTable.FIRST; i < GuidTable.FIRST + set[GuidTable.COUNT]; ++i) {
+            if (set[i] == neighId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the neighbors the query was sent to (none if we don't know it)
+     */
+    public synchronized int[] getSent(int guid) {
+        int[] set = this.find(guid);
+        if (set == null) return new int[0];
+        return Arrays.copyOfRange(set, GuidTable.FIRST, GuidTable.FIRST + set[GuidTable.COUNT]);
+    }
+
+    /**
+     * The query needs no more hits: it isn't passed on anymore.
+     *
+     * @return false if it was already cancelled
+     */
+    public synchronized boolean cancel(int guid) {
+        int[] set = this.touch(guid);
+        if (set[GuidTable.CANCELLED] != 0) return false;
+        set[GuidTable.CANCELLED] = 1;
+        return true;
+    }
+
+    public synchronized boolean isCancelled(int guid) {
+        int[] set = this.find(guid);
+        return set != null && set[GuidTable.CANCELLED] != 0;
+    }
+
+    /**
+     * Forgets the neighbors the query went to (so they can be tried again), but not the query.
+     */
+    public synchronized void clearSent(int guid) {
+        this.touch(guid)[GuidTable.COUNT] = 0;
+    }
+
+    /**
+     * Records where the query came from (the first one to arrive wins).
+     */
+    public synchronized void setUpstream(int guid, int neighId) {
+        int[] set = this.touch(guid);
+        if (set[GuidTable.HAS_UPSTREAM] != 0) return;
+        set[GuidTable.HAS_UPSTREAM] = 1;
+        set[GuidTable.UPSTREAM] = neighId;
+    }
+
+    /**
+     * @return null if we don't know (anymore) where the query came from
+     */
+    public synchronized Integer getUpstream(int guid) {
+        int[] set = this.find(guid);
+        if (set == null || set[GuidTable.HAS_UPSTREAM] == 0) return null;
+        return set[GuidTable.UPSTREAM];
+    }
+
+    /**
+     * The guid's set, moved to the current generation (the copy left behind is shadowed until it expires).
+     */
+    private int[] touch(int guid) {
+        this.rotate();
+        Generation newest = this.generations[this.current];
+        int[] set = newest.get(guid);
+        if (set != null) return set;
+
+        for (int age = 1; age < GuidTable.GENERATIONS && set == null; ++age)
+            set = this.generations[Math.floorMod(this.current - age, GuidTable.GENERATIONS)].get(guid);
+        set = (set == null) ? new int[GuidTable.FIRST + 4] : set.clone();
+        newest.put(guid, set);
+        return set;
+    }
+
+    private int[] find(int guid) {
+        this.rotate();
+        int[] set = null;
+        for (int age = 0; age < GuidTable.GENERATIONS && set == null; ++age)
+            set = this.generations[Math.floorMod(this.current - age, GuidTable.GENERATIONS)].get(guid);
+        return set;
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        long elapsed = (now - this.currentStart) / this.period;
+        if (elapsed <= 0) return;
+
+        // after a long quiet spell everything is gone at once
+        for (long i = 0; i < Math.min(elapsed, GuidTable.GENERATIONS); ++i) {
+            this.current = (this.current + 1) % GuidTable.GENERATIONS;
+            this.generations[this.current] = new Generation(); // drops the oldest
+        }
+        this.currentStart += elapsed * this.period;
+    }
+
+    private static final class Generation {
+        private int[] guids = new int[16];
+        private int[][] sets = new int[16][]; // null => free slot
+        private int size = 0;
+
+        private int slot(int guid, int[] guids, int[][] sets) {
+            int mask = guids.length - 1;
+            int h = guid * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (sets[i] != null && guids[i] != guid)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        int[] get(int guid) {
+            return this.sets[this.slot(guid, this.guids, this.sets)];
+        }
+
+        void put(int guid, int[] set) {
+            int i = this.slot(guid, this.guids, this.sets);
+            if (this.sets[i] == null) {
+                if ((this.size + 1) * 4 > this.guids.length * 3) {
+                    this.grow();
+                    i = this.slot(guid, this.guids, this.sets);
+                }
+                ++this.size;
+            }
+            this.guids[i] = guid;
+            this.sets[i] = set;
+        }
+
+        private void grow() {
+            int[] newGuids = new int[this.guids.length * 2];
+            int[][] newSets = new int[this.sets.length * 2][];
+            for (int i = 0; i < this.guids.length; ++i) {
+                if (this.sets[i] == null) continue;
+                int j = this.slot(this.guids[i], newGuids, newSets);
+                newGuids[j] = this.guids[i];
+                newSets[j] = this.sets[i];
+            }
+            this.guids = newGuids;
+            this.sets = newSets;
+        }
+    }
+}
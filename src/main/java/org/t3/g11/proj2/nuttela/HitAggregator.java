@@ -0,0 +1,72 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.message.Result;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Reverse path hit routing: hits for the same query that reach a relay close together leave as one message, and
+ * results that were already passed on for that query are dropped.
+ */
+public class HitAggregator {
+    public static final int FLUSH_DELAY = 200; // ms a hit waits for others of the same query
+
+    private static class Batch {
+        private final Set<Integer> seen = new HashSet<>(); // guids of the results taken for this query
+        private final List<Result> pending = new ArrayList<>();
+        private boolean scheduled = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+    }
+
+    private final ConcurrentHashMap<Integer, Batch> batches = new ConcurrentHashMap<>(); // query guid => batch
+    private final ScheduledExecutorService scheduler;
+    private final long window;
+    private final BiConsumer<Integer, List<Result>> sink; // (query guid, merged results)
+
+    public HitAggregator(long windowMillis, ThreadFactory threadFactory, BiConsumer<Integer, List<Result>> sink) {
+        this.window = windowMillis;
+        this.sink = sink;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        // forget the queries we haven't heard of for a while
+        long sweep = Math.max(1, windowMillis / 4);
+        this.scheduler.scheduleAtFixedRate(this::expire, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(int guid, List<Result> results) {
+        Batch batch = this.batches.computeIfAbsent(guid, g -> new Batch());
+        synchronized (batch) {
+            batch.lastUsed = System.currentTimeMillis();
+            for (Result result : results) {
+                if (batch.seen.add(result.guid)) batch.pending.add(result);
+            }
+            if (batch.pending.isEmpty() || batch.scheduled) return;
+            batch.scheduled = true;
+        }
+        this.scheduler.schedule(() -> this.flush(guid, batch), HitAggregator.FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(int guid, Batch batch) {
+        List<Result> merged;
+        synchronized (batch) {
+            merged = new ArrayList<>(batch.pending);
+            batch.pending.clear();
+            batch.scheduled = false;
+        }
+        this.sink.accept(guid, merged);
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - this.window;
+        this.batches.values().removeIf(batch -> batch.lastUsed < oldest);
+    }
+
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+}
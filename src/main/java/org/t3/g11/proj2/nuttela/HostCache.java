@@ -0,0 +1,183 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hosts we heard of (from pongs) and could connect to. At most maxHosts are kept: when it is full, the ones with the
+ * lowest score go. The score of a host is higher the more recently we heard of it (it halves every FRESHNESS ms), the
+ * more often connecting to it worked and the more capacity it has.
+ * <p>
+ * Updates only lock the entry they touch. The cache can be saved to a file and loaded back, so a node that restarts
+ * can rejoin through the hosts it knew instead of going to the bootstrap node.
+ */
+public class HostCache {
+    public static final long FRESHNESS = 60000; // ms for a host we don't hear of to lose half its score
+    public static final int MAX_FAILURES = 3; // failed connections in a row before a host is dropped
+
+    private static class Entry {
+        private final InetSocketAddress address;
+        private int capacity;
+        private long lastSeen; // we heard of it (or talked to it)
+        private int successes = 0;
+        private int failures = 0;
+        private int failuresInARow = 0;
+
+        private Entry(InetSocketAddress address, int capacity, long lastSeen) {
+            this.address = address;
+            this.capacity = capacity;
+            this.lastSeen = lastSeen;
+        }
+
+        private synchronized double score(long now) {
+            double freshness = Math.pow(0.5, (double) Math.max(0, now - this.lastSeen) / HostCache.FRESHNESS);
+            double successRate = (this.successes + 1.0) / (this.successes + this.failures + 2.0);
+            double capacityWeight = 1 + Math.log(Math.max(1, this.capacity)) / Math.log(2);
+            return freshness * successRate * capacityWeight;
+        }
+
+        private synchronized HostsCacheInfo toInfo() {
+            return new HostsCacheInfo(this.failuresInARow == 0, this.address, this.capacity);
+        }
+    }
+
+    private final int maxHosts;
+    private final InetSocketAddress self; // never cached
+    private final ConcurrentHashMap<InetSocketAddress, Entry> entries = new ConcurrentHashMap<>();
+
+    public HostCache(int maxHosts, InetSocketAddress self) {
+        this.maxHosts = maxHosts;
+        this.self = self;
+    }
+
+    /**
+     * Hosts a neighbor told us about (the ones it thinks are dead are left alone: we may know better).
+     */
+    public void update(List<HostsCacheInfo> hosts) {
+        long now = System.currentTimeMillis();
+        for (HostsCacheInfo host : hosts) {
+            if (!host.isAlive || host.address.equals(this.self)) continue;
+            Entry entry = this.entries.computeIfAbsent(host.address, a -> new Entry(a, host.capacity, now));
+            synchronized (entry) {
+                entry.capacity = host.capacity; // capacities change
+                entry.lastSeen = Math.max(entry.lastSeen, now);
+            }
+        }
+        if (this.entries.size() > this.maxHosts) this.evict();
+    }
+
+    public void recordSuccess(InetSocketAddress address) {
+        Entry entry = this.entries.get(address);
+        if (entry == null) return;
+        synchronized (entry) {
+            ++entry.successes;
+            entry.failuresInARow = 0;
+            entry.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    public void recordFailure(InetSocketAddress address) {
+        Entry entry = this.entries.get(address);
+        if (entry == null) return;
+        synchronized (entry) {
+            ++entry.failures;
+            ++entry.failuresInARow;
+        }
+    }
+
+    /**
+     * Drops the hosts that failed too many times in a row.
+     */
+    public void prune() {
+        this.entries.values().removeIf(entry -> {
+            synchronized (entry) {
+                return entry.failuresInARow >= HostCache.MAX_FAILURES;
+            }
+        });
+    }
+
+    private synchronized void evict() {
+        long now = System.currentTimeMillis();
+        int extra = this.entries.size() - this.maxHosts;
+        if (extra <= 0) return;
+
+        // scores are taken once: other threads keep updating the entries while we sort
+        List<Map.Entry<Double, Entry>> worst = new ArrayList<>();
+        for (Entry entry : this.entries.values())
+            worst.add(Map.entry(entry.score(now), entry));
+        worst.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<Double, Entry> entry : worst.subList(0, extra))
+            this.entries.remove(entry.getValue().address, entry.getValue());
+    }
+
+    /**
+     * @return up to n hosts, best score first (hosts that failed last time we tried them are left out)
+     */
+    public List<HostsCacheInfo> best(int n) {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Double, HostsCacheInfo>> scored = new ArrayList<>();
+        for (Entry entry : this.entries.values()) {
+            HostsCacheInfo info = entry.toInfo();
+            if (info.isAlive) scored.add(Map.entry(entry.score(now), info));
+        }
+        scored.sort(Map.Entry.<Double, HostsCacheInfo>comparingByKey().reversed());
+
+        List<HostsCacheInfo> result = new ArrayList<>();
+        for (Map.Entry<Double, HostsCacheInfo> host : scored.subList(0, Math.min(n, scored.size())))
+            result.add(host.getValue());
+        return result;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * One host per line: host port capacity lastSeen successes failures. Written to a temporary file first, so a
+     * crash while saving leaves the previous snapshot.
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Entry entry : this.entries.values()) {
+                synchronized (entry) {
+                    out.write(entry.address.getHostString() + " " + entry.address.getPort() + " " + entry.capacity
+                            + " " + entry.lastSeen + " " + entry.successes + " " + entry.failures);
+                }
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the hosts saved in the file (lines that don't parse are skipped).
+     */
+    public void load(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                try {
+                    InetSocketAddress address = new InetSocketAddress(fields[0], Integer.parseInt(fields[1]));
+                    if (address.equals(this.self)) continue;
+                    Entry entry = new Entry(address, Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+                    entry.successes = Integer.parseInt(fields[4]);
+                    entry.failures = Integer.parseInt(fields[5]);
+                    this.entries.putIfAbsent(address, entry);
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    System.err.println("Bad host cache line: " + line);
+                }
+            }
+        }
+        if (this.entries.size() > this.maxHosts) this.evict();
+    }
+}
@@ -0,0 +1,163 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.connection.GnuConnectionPool;
+import org.t3.g11.proj2.nuttela.message.ShuffleMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Cyclon peer sampling: every node keeps a small view of other nodes and, every round, swaps part of it with the node
+ * of its oldest entry (which leaves our view: if it is dead, nobody gets it from us anymore). Views end up as close to
+ * uniform random samples of the whole overlay, whatever node a node joined through, so they are where new neighbors
+ * are picked from, instead of the neighbor lists that come back in pongs. Shuffles also spread the network size
+ * estimate.
+ */
+public class PeerSampler {
+    public static final int VIEW_SIZE = 20;
+    public static final int SHUFFLE_LENGTH = 5; // entries swapped per round
+
+    private final InetSocketAddress self;
+    private final InetSocketAddress contact; // asked while we don't know anyone
+    private final GnuConnectionPool connections;
+    private final SizeEstimator sizeEstimator = new SizeEstimator();
+    private final List<SampledPeer> view = new ArrayList<>();
+    private final Random random = new Random();
+
+    public PeerSampler(InetSocketAddress self, InetSocketAddress contact, GnuConnectionPool connections) {
+        this.self = self;
+        this.contact = contact;
+        this.connections = connections;
+    }
+
+    /**
+     * Hosts we knew before (e.g. saved in the host cache), to start from.
+     */
+    public synchronized void seed(List<HostsCacheInfo> hosts) {
+        for (HostsCacheInfo host : hosts) {
+            if (this.view.size() >= PeerSampler.VIEW_SIZE) return;
+            if (!host.address.equals(this.self) && this.indexOf(host.address) < 0)
+                this.view.add(new SampledPeer(host.address, host.capacity, 0));
+        }
+    }
+
+    /**
+     * --->> Shuffle (to the node of our oldest entry)
+     * <<--- Shuffle
+     *
+     * @return the entries we got, or null if the node didn't answer
+     */
+    public List<SampledPeer> shuffle(int capacity) {
+        SampledPeer target;
+        List<SampledPeer> sent;
+        synchronized (this) {
+            this.view.replaceAll(SampledPeer::older);
+            if (this.view.isEmpty()) {
+                if (this.contact.equals(this.self)) return null;
+                target = new SampledPeer(this.contact, 0, 0);
+            } else {
+                target = Collections.max(this.view, Comparator.comparingInt(SampledPeer::age));
+                this.view.remove(target);
+            }
+            sent = this.pick(PeerSampler.SHUFFLE_LENGTH - 1, target.address());
+        }
+
+        List<SampledPeer> request = new ArrayList<>(sent);
+        request.add(new SampledPeer(this.self, capacity, 0));
+        this.sizeEstimator.tick();
+        ShuffleMessage reply;
+        try {
+            reply = (ShuffleMessage) this.connections.request(target.address(), new ShuffleMessage(this.self, request,
+                    this.sizeEstimator.getEpoch(), this.sizeEstimator.getMins()));
+        } catch (IOException | ClassCastException e) {
+            System.err.println("Shuffle with " + target.address() + " failed.");
+            return null;
+        }
+        this.sizeEstimator.merge(reply.getSizeEpoch(), reply.getSizeMins());
+        this.merge(reply.getPeers(), sent);
+        return reply.getPeers();
+    }
+
+    /**
+     * <<--- Shuffle
+     * --->> Shuffle (part of our view)
+     */
+    public ShuffleMessage handle(ShuffleMessage msg) {
+        List<SampledPeer> sent;
+        synchronized (this) {
+            sent = this.pick(PeerSampler.SHUFFLE_LENGTH, msg.getAddr());
+        }
+        this.merge(msg.getPeers(), sent);
+        this.sizeEstimator.merge(msg.getSizeEpoch(), msg.getSizeMins());
+        return new ShuffleMessage(this.self, sent, this.sizeEstimator.getEpoch(), this.sizeEstimator.getMins());
+    }
+
+    /**
+     * How many nodes the overlay has, as far as the shuffles so far tell.
+     */
+    public double estimateSize() {
+        return this.sizeEstimator.estimate();
+    }
+
+    /**
+     * Whether the size estimate has been through a whole epoch (before that it barely knows more than us).
+     */
+    public boolean isSizeSettled() {
+        return this.sizeEstimator.isSettled();
+    }
+
+    /**
+     * Up to n entries of the view, picked at random.
+     */
+    public synchronized List<SampledPeer> sample(int n) {
+        List<SampledPeer> shuffled = new ArrayList<>(this.view);
+        Collections.shuffle(shuffled, this.random);
+        return new ArrayList<>(shuffled.subList(0, Math.min(n, shuffled.size())));
+    }
+
+    /**
+     * Up to n random entries, leaving out the node we are swapping with.
+     */
+    private List<SampledPeer> pick(int n, InetSocketAddress other) {
+        List<SampledPeer> candidates = new ArrayList<>(this.view);
+        candidates.removeIf(peer -> peer.address().equals(other));
+        Collections.shuffle(candidates, this.random);
+        return new ArrayList<>(candidates.subList(0, Math.min(n, candidates.size())));
+    }
+
+    /**
+     * New entries fill the empty slots first, then take the place of the ones we sent.
+     */
+    private synchronized void merge(List<SampledPeer> received, List<SampledPeer> sent) {
+        Deque<SampledPeer> replaceable = new ArrayDeque<>(sent);
+        for (SampledPeer peer : received) {
+            if (peer.address().equals(this.self)) continue;
+            int known = this.indexOf(peer.address());
+            if (known >= 0) {
+                // keep the fresher one
+                if (peer.age() < this.view.get(known).age()) this.view.set(known, peer);
+                continue;
+            }
+
+            if (this.view.size() < PeerSampler.VIEW_SIZE) {
+                this.view.add(peer);
+                continue;
+            }
+            while (!replaceable.isEmpty()) {
+                int slot = this.indexOf(replaceable.poll().address());
+                if (slot >= 0) {
+                    this.view.set(slot, peer);
+                    break;
+                }
+            }
+        }
+    }
+
+    private int indexOf(InetSocketAddress address) {
+        for (int i = 0; i < this.view.size(); ++i) {
+            if (this.view.get(i).address().equals(address)) return i;
+        }
+        return -1;
+    }
+}
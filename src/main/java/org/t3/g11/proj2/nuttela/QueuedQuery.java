@@ -9,12 +9,14 @@ public class QueuedQuery implements Comparable<QueuedQuery> {
     private final double startTag;
     private final double finishTag;
     private final int hopId;
+    private final long seq; // arrival order: breaks ties between equal start tags
 
-    public QueuedQuery(Query query, double virtTime, double prevFinishTag, int weight, int hopId) {
+    public QueuedQuery(Query query, double virtTime, double prevFinishTag, int weight, int hopId, long seq) {
         this.query = query;
         this.startTag = Math.max(virtTime, prevFinishTag);
         this.finishTag = this.startTag + ((double) query.getSize() / weight);
         this.hopId = hopId;
+        this.seq = seq;
     }
 
     public Query getQuery() {
@@ -31,7 +33,8 @@ public class QueuedQuery implements Comparable<QueuedQuery> {
 
     @Override
     public int compareTo(QueuedQuery o) {
-        return Comparator.comparingDouble(QueuedQuery::getStartTag).compare(this, o);
+        return Comparator.comparingDouble(QueuedQuery::getStartTag)
+                .thenComparingLong(q -> q.seq).compare(this, o);
     }
 
     public int getHopId() {
@@ -0,0 +1,145 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.message.Result;
+import org.t3.g11.proj2.nuttela.message.query.MultiUserQuery;
+import org.t3.g11.proj2.nuttela.message.query.Query;
+import org.t3.g11.proj2.nuttela.message.query.QueryType;
+import org.t3.g11.proj2.nuttela.message.query.UserQuery;
+
+import java.util.*;
+
+/**
+ * Recent result sets, so a node can answer a query it has seen answered shortly before (popular authors are polled
+ * by all their followers) without going to the database or further down the overlay.
+ * <p>
+ * Entries are keyed by (query type, query string, bucket of the since date) and remember the exact since date they
+ * were built for: they can answer any query of the same bucket that asks for posts since then or later. Least
+ * recently used entries go first once the cache is full, and every entry is dropped ttl ms after it was filled.
+ * Multi-user queries are cached per user, as user queries.
+ */
+public class ResultCache {
+    public static final long SINCE_BUCKET = 60000; // ms of since dates that share an entry
+    public static final int MAX_EXPECTED = 1024; // relayed queries we keep waiting for hits of
+
+    private record Key(QueryType type, String queryString, long sinceBucket) {
+        static Key of(QueryType type, String queryString, long since) {
+            return new Key(type, queryString, since / ResultCache.SINCE_BUCKET);
+        }
+    }
+
+    private static class Entry {
+        private final long since;
+        private final long expires;
+        private final LinkedHashMap<Integer, Result> results = new LinkedHashMap<>(); // result guid => result
+
+        private Entry(long since, long expires) {
+            this.since = since;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * What a relayed query asked for: query string (or username) => since date.
+     */
+    private record Expected(QueryType type, Map<String, Long> since) {
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final LinkedHashMap<Integer, Expected> expected; // query guid => what it asked for
+
+    public ResultCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return this.size() > ResultCache.this.maxEntries;
+            }
+        };
+        this.expected = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Expected> eldest) {
+                return this.size() > ResultCache.MAX_EXPECTED;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return this.maxEntries > 0 && this.ttl > 0;
+    }
+
+    /**
+     * @return the results newer than since, or null if we don't know them
+     */
+    public synchronized List<Result> get(QueryType type, String queryString, long since) {
+        if (!this.isEnabled()) return null;
+        Key key = Key.of(type, queryString, since);
+        Entry entry = this.entries.get(key);
+        if (entry == null) return null;
+        if (entry.expires <= System.currentTimeMillis()) {
+            this.entries.remove(key);
+            return null;
+        }
+        if (entry.since > since) return null; // it may be missing the posts in between
+
+        List<Result> results = new ArrayList<>();
+        for (Result result : entry.results.values()) {
+            if (result.date > since) results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Results for the posts newer than since (empty result sets aren't kept: they don't save anyone any work).
+     */
+    public synchronized void put(QueryType type, String queryString, long since, List<Result> results) {
+        if (!this.isEnabled() || results.isEmpty()) return;
+        Key key = Key.of(type, queryString, since);
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.expires > now && entry.since < since) return; // it answers more queries
+
+        if (entry == null || entry.expires <= now || entry.since > since) {
+            entry = new Entry(since, now + this.ttl);
+            this.entries.put(key, entry);
+        }
+        // same since: hits for it come in several batches
+        for (Result result : results)
+            entry.results.put(result.guid, result);
+    }
+
+    /**
+     * Remembers what a query we pass on asked for, so its hits can be cached on their way back.
+     */
+    public synchronized void expect(Query query) {
+        if (!this.isEnabled()) return;
+        switch (query.getQueryType()) {
+            case USER -> this.expected.put(query.getGuid(), new Expected(QueryType.USER,
+                    Map.of(query.getQueryString(), ((UserQuery) query).getLatestDate())));
+            case TAG -> this.expected.put(query.getGuid(), new Expected(QueryType.TAG,
+                    Map.of(query.getQueryString(), Query.ALLDATE)));
+            case MULTI_USER -> this.expected.put(query.getGuid(), new Expected(QueryType.USER,
+                    new HashMap<>(((MultiUserQuery) query).getUsers())));
+        }
+    }
+
+    /**
+     * Hits passing through for a query we passed on.
+     */
+    public synchronized void offer(int guid, List<Result> results) {
+        Expected exp = this.expected.get(guid);
+        if (exp == null) return;
+
+        // user (and multi-user) results are grouped by author, tag results all belong to the one tag
+        Map<String, List<Result>> groups = new HashMap<>();
+        for (Result result : results) {
+            String queryString = (exp.type == QueryType.TAG) ? exp.since.keySet().iterator().next() : result.author;
+            if (exp.since.containsKey(queryString))
+                groups.computeIfAbsent(queryString, q -> new ArrayList<>()).add(result);
+        }
+        for (Map.Entry<String, List<Result>> group : groups.entrySet())
+            this.put(exp.type, group.getKey(), exp.since.get(group.getKey()), group.getValue());
+    }
+}
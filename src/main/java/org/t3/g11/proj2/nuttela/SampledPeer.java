@@ -0,0 +1,18 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * An entry of a peer sampling view: where to reach the node, its capacity and how many shuffles ago the entry was
+ * created (by the node itself).
+ */
+public record SampledPeer(InetSocketAddress address, int capacity, int age) implements Serializable {
+    public SampledPeer older() {
+        return new SampledPeer(this.address, this.capacity, this.age + 1);
+    }
+
+    public HostsCacheInfo toHostsCacheInfo() {
+        return new HostsCacheInfo(true, this.address, this.capacity);
+    }
+}
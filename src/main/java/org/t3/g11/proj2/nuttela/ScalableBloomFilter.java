@@ -0,0 +1,104 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The node's own filter: a chain of (counting) slices. New entries go to the newest slice until it reaches its
+ * false positive limit, then a new slice is started, GROWTH times bigger and with a tighter limit (RATIO of the one
+ * before), so the filter as a whole never goes over maxFpp however much content we get and nothing is ever copied.
+ * <p>
+ * Slices keep the hash functions of the geometry every node uses (see GnuNodeInfo.newBloomFilter) and only have more
+ * bits, so each one folds onto that geometry exactly. Neighbors get a single filter of that size: all slices folded
+ * and ORed together. It merges with everybody else's, but it fills up as we get more content: past
+ * GnuNodeInfo.MAX_LEVEL_FPP neighbors stop routing on it (see GnuNodeInfo.isSaturated) and only use it to skip
+ * leaves that certainly don't have something.
+ */
+public class ScalableBloomFilter {
+    public static final int GROWTH = 2;
+    public static final double RATIO = 0.5;
+
+    private final double firstFpp;
+    private final CopyOnWriteArrayList<CountingBloomFilter> slices = new CopyOnWriteArrayList<>(); // oldest first
+    private final HashMap<String, CountingBloomFilter> sliceOf = new HashMap<>(); // entry => slice that counts it
+    private final HashMap<String, Integer> times = new HashMap<>(); // entry => times it was added
+    private BloomFilter<String> view = null; // merged slices, kept until they change
+
+    public ScalableBloomFilter(double maxFpp) {
+        // maxFpp * (1 - RATIO) * (1 + RATIO + RATIO^2 + ...) = maxFpp
+        this.firstFpp = maxFpp * (1 - ScalableBloomFilter.RATIO);
+        this.slices.add(new CountingBloomFilter(GnuNodeInfo.newBloomFilter()));
+    }
+
+    /**
+     * @return true if the merged filter changed
+     */
+    public synchronized boolean add(String entry) {
+        CountingBloomFilter slice = this.sliceOf.get(entry);
+        if (slice == null) {
+            slice = this.slices.get(this.slices.size() - 1);
+            double limit = this.firstFpp * Math.pow(ScalableBloomFilter.RATIO, this.slices.size() - 1);
+            if (slice.expectedFpp() >= limit) {
+                int scale = (int) Math.pow(ScalableBloomFilter.GROWTH, this.slices.size());
+                slice = new CountingBloomFilter(GnuNodeInfo.newBloomFilter(), scale);
+                this.slices.add(slice);
+            }
+            this.sliceOf.put(entry, slice);
+        }
+        this.times.merge(entry, 1, Integer::sum);
+        return this.changed(slice.add(entry));
+    }
+
+    /**
+     * Takes out an entry that was added (once for every time it was added).
+     *
+     * @return true if the merged filter changed
+     */
+    public synchronized boolean remove(String entry) {
+        CountingBloomFilter slice = this.sliceOf.get(entry);
+        if (slice == null) return false;
+        if (this.times.merge(entry, -1, Integer::sum) == 0) {
+            this.times.remove(entry);
+            this.sliceOf.remove(entry);
+        }
+
+        boolean changed = slice.remove(entry);
+        // slices that emptied out aren't worth checking anymore (the newest stays: new entries go there)
+        if (slice.isEmpty() && slice != this.slices.get(this.slices.size() - 1)) this.slices.remove(slice);
+        return this.changed(changed);
+    }
+
+    public boolean mightContain(String entry) {
+        // no lock: the slices can be checked while others add
+        for (CountingBloomFilter slice : this.slices) {
+            if (slice.mightContain(entry)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * What neighbors get (don't change it: it is shared until our bits change).
+     */
+    public synchronized BloomFilter<String> toBloomFilter() {
+        if (this.view != null) return this.view;
+
+        BloomBits.Snapshot geometry = BloomBits.snapshot(List.of(GnuNodeInfo.newBloomFilter()));
+        long[] data = new long[geometry.data().length];
+        for (CountingBloomFilter slice : this.slices)
+            slice.foldInto(data);
+        this.view = BloomBits.fromLongs(geometry.strategy(), geometry.numHashFunctions(), data);
+        return this.view;
+    }
+
+    public int getSlices() {
+        return this.slices.size();
+    }
+
+    private boolean changed(boolean changed) {
+        if (changed) this.view = null;
+        return changed;
+    }
+}
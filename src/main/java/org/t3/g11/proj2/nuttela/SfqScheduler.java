@@ -0,0 +1,205 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.t3.g11.proj2.nuttela.message.query.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Start-time fair queuing with up to D queries in service at once (SFQ(D)). Every neighbor is a flow with its own
+ * FIFO (start tags only grow within a flow); the flows that have something queued are kept in a sorted set ordered by
+ * the start tag of their first query (then the flow id), so enqueueing, dispatching and moving a flow are O(log flows).
+ * Queued queries are also indexed by guid, so dropping a cancelled query only touches the flows that have it.
+ * <p>
+ * A query gets start tag max(v, finish tag of the flow's previous query) and finish tag start + size / weight.
+ * The virtual time v is the start tag of the last dispatched query, or the highest finish tag served so far when
+ * nothing is queued or in service.
+ * <p>
+ * Each flow is bounded (number of queries and their total size): once full, the flow's own queries are shed
+ * according to the {@link ShedPolicy}, so a flooding neighbor only hurts itself.
+ */
+public class SfqScheduler {
+    public enum ShedPolicy {
+        DROP_OLDEST, // make room by dropping the flow's oldest query
+        DROP_LOWEST_TTL, // make room by dropping the flow's query (the new one included) that has the least ttl left
+        REJECT // refuse the new query (the sender gets told to back off)
+    }
+
+    private static class Flow {
+        private final int id;
+        private final ArrayDeque<QueuedQuery> queue = new ArrayDeque<>();
+        private double lastFinishTag = 0.0;
+        private int bytes = 0;
+
+        private Flow(int id) {
+            this.id = id;
+        }
+    }
+
+    private final int depth;
+    private final int maxQueries;
+    private final int maxBytes;
+    private final ShedPolicy policy;
+    private final HashMap<Integer, Flow> flows = new HashMap<>(); // neighbor id => flow
+    // a flow's first query must not change while the flow is in here: take it out, change the queue, put it back
+    private final TreeSet<Flow> heads = new TreeSet<>(Comparator.comparing((Flow f) -> f.queue.peekFirst())
+            .thenComparingInt(f -> f.id));
+    private final HashMap<Integer, List<QueuedQuery>> copies = new HashMap<>(); // query guid => its queued copies
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dispatchable = this.lock.newCondition();
+
+    private int queued = 0;
+    private int inService = 0;
+    private double virtualTime = 0.0;
+    private double maxFinishTag = 0.0;
+    private long seq = 0;
+
+    public SfqScheduler(int depth, int maxQueries, int maxBytes, ShedPolicy policy) {
+        this.depth = Math.max(1, depth);
+        this.maxQueries = Math.max(1, maxQueries);
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * @return false if the query was not queued (the flow is full and the policy rejects or dropped this query)
+     */
+    public boolean enqueue(int flowId, int weight, Query query) {
+        this.lock.lock();
+        try {
+            Flow flow = this.flows.computeIfAbsent(flowId, Flow::new);
+            if (!this.makeRoom(flow, query)) return false;
+            if (this.queued == 0 && this.inService == 0) this.virtualTime = this.maxFinishTag; // idle
+
+            QueuedQuery queuedQuery = new QueuedQuery(query, this.virtualTime, flow.lastFinishTag,
+                    Math.max(1, weight), flowId, this.seq++);
+            flow.lastFinishTag = queuedQuery.getFinishTag();
+            flow.queue.addLast(queuedQuery);
+            flow.bytes += query.getSize();
+            this.copies.computeIfAbsent(query.getGuid(), guid -> new ArrayList<>(1)).add(queuedQuery);
+            if (flow.queue.size() == 1) this.heads.add(flow);
+            ++this.queued;
+            this.dispatchable.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isFull(Flow flow, Query incoming) {
+        // a single query bigger than maxBytes still gets in when its flow is empty
+        return !flow.queue.isEmpty() && (flow.queue.size() >= this.maxQueries
+                || flow.bytes + incoming.getSize() > this.maxBytes);
+    }
+
+    private boolean makeRoom(Flow flow, Query incoming) {
+        if (!this.isFull(flow, incoming)) return true;
+        if (this.policy == ShedPolicy.REJECT) return false;
+
+        // the head may change: the flow's place in the set is redone after shedding
+        this.heads.remove(flow);
+        while (this.isFull(flow, incoming)) {
+            QueuedQuery victim = flow.queue.peekFirst();
+            if (this.policy == ShedPolicy.DROP_LOWEST_TTL) {
+                for (QueuedQuery queuedQuery : flow.queue) {
+                    if (queuedQuery.getQuery().getTtl() < victim.getQuery().getTtl()) victim = queuedQuery;
+                }
+                if (incoming.getTtl() <= victim.getQuery().getTtl()) break; // the new one goes
+            }
+            flow.queue.remove(victim);
+            flow.bytes -= victim.getQuery().getSize();
+            this.forget(victim);
+            --this.queued;
+        }
+        if (!flow.queue.isEmpty()) this.heads.add(flow);
+        return !this.isFull(flow, incoming);
+    }
+
+    /**
+     * Waits for a free slot and a queued query, and takes the query with the lowest start tag.
+     * {@link #complete(QueuedQuery)} must be called when it is done.
+     */
+    public QueuedQuery take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.inService >= this.depth || this.heads.isEmpty())
+                this.dispatchable.await();
+
+            Flow flow = this.heads.pollFirst();
+            QueuedQuery queuedQuery = flow.queue.pollFirst();
+            flow.bytes -= queuedQuery.getQuery().getSize();
+            this.forget(queuedQuery);
+            if (!flow.queue.isEmpty()) this.heads.add(flow);
+            --this.queued;
+            ++this.inService;
+            this.virtualTime = queuedQuery.getStartTag();
+            return queuedQuery;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void complete(QueuedQuery queuedQuery) {
+        this.lock.lock();
+        try {
+            --this.inService;
+            this.maxFinishTag = Math.max(this.maxFinishTag, queuedQuery.getFinishTag());
+            this.dispatchable.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queued copies of a query, whatever neighbor they came from (it was cancelled).
+     */
+    public void removeQuery(int guid) {
+        this.lock.lock();
+        try {
+            List<QueuedQuery> queued = this.copies.remove(guid);
+            if (queued == null) return;
+            for (QueuedQuery queuedQuery : queued) {
+                Flow flow = this.flows.get(queuedQuery.getHopId());
+                // only the first query orders the flow in the set
+                boolean headGoes = flow.queue.peekFirst() == queuedQuery;
+                if (headGoes) this.heads.remove(flow);
+                flow.queue.remove(queuedQuery);
+                flow.bytes -= queuedQuery.getQuery().getSize();
+                --this.queued;
+                if (headGoes && !flow.queue.isEmpty()) this.heads.add(flow);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The neighbor is gone: its queued queries go with it.
+     */
+    public void removeFlow(int flowId) {
+        this.lock.lock();
+        try {
+            Flow flow = this.flows.remove(flowId);
+            if (flow == null) return;
+            if (!flow.queue.isEmpty()) this.heads.remove(flow);
+            for (QueuedQuery queuedQuery : flow.queue) this.forget(queuedQuery);
+            this.queued -= flow.queue.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void forget(QueuedQuery queuedQuery) {
+        int guid = queuedQuery.getQuery().getGuid();
+        List<QueuedQuery> queued = this.copies.get(guid);
+        if (queued == null) return;
+        queued.remove(queuedQuery);
+        if (queued.isEmpty()) this.copies.remove(guid);
+    }
+}
@@ -0,0 +1,81 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interest-based shortcuts: nodes that answered our queries before are likely to answer the next ones too (they
+ * follow the same people, post under the same tags), so our own queries go straight to them before going around the
+ * overlay. Shortcuts aren't neighbors: they only answer our queries, never pass them on.
+ * <p>
+ * At most maxShortcuts are kept. A node that answers one of our walkers takes the place of the shortcut with the
+ * lowest hit rate, the least recently useful one among equals.
+ */
+public class ShortcutTable {
+    private static class Shortcut {
+        private int tries = 1;
+        private int hits = 1;
+
+        private double hitRate() {
+            return (this.hits + 1.0) / (this.tries + 2.0);
+        }
+    }
+
+    private final int maxShortcuts;
+    private final InetSocketAddress self;
+    // the least recently useful shortcut comes first
+    private final LinkedHashMap<InetSocketAddress, Shortcut> shortcuts = new LinkedHashMap<>();
+
+    public ShortcutTable(int maxShortcuts, InetSocketAddress self) {
+        this.maxShortcuts = maxShortcuts;
+        this.self = self;
+    }
+
+    public synchronized List<InetSocketAddress> getAll() {
+        return new ArrayList<>(this.shortcuts.keySet());
+    }
+
+    /**
+     * We sent it a query.
+     */
+    public synchronized void recordTry(InetSocketAddress address) {
+        Shortcut shortcut = this.shortcuts.get(address);
+        if (shortcut != null) ++shortcut.tries;
+    }
+
+    /**
+     * It answered one of our queries: it becomes a shortcut if it wasn't one.
+     */
+    public synchronized void recordHit(InetSocketAddress address) {
+        if (this.maxShortcuts <= 0 || address.equals(this.self)) return;
+        Shortcut shortcut = this.shortcuts.remove(address);
+        if (shortcut != null) {
+            ++shortcut.hits;
+            this.shortcuts.put(address, shortcut); // now the most recently useful
+            return;
+        }
+
+        if (this.shortcuts.size() >= this.maxShortcuts) {
+            InetSocketAddress worst = null;
+            double worstRate = Double.MAX_VALUE;
+            for (Map.Entry<InetSocketAddress, Shortcut> entry : this.shortcuts.entrySet()) {
+                if (entry.getValue().hitRate() < worstRate) {
+                    worst = entry.getKey();
+                    worstRate = entry.getValue().hitRate();
+                }
+            }
+            this.shortcuts.remove(worst);
+        }
+        this.shortcuts.put(address, new Shortcut());
+    }
+
+    /**
+     * We couldn't reach it.
+     */
+    public synchronized void remove(InetSocketAddress address) {
+        this.shortcuts.remove(address);
+    }
+}
@@ -0,0 +1,88 @@
+package org.t3.g11.proj2.nuttela;
+
+import java.util.Random;
+
+/**
+ * Gossiped estimate of how many nodes the overlay has (extrema propagation). Every node draws K exponential random
+ * values and, whenever two nodes talk, both keep the element-wise minimum of theirs. Once that has spread, everyone
+ * has the minimums over the whole overlay, and the minimum of N exponentials is exponential with rate N, so
+ * N ~ (K - 1) / sum of the minimums.
+ * <p>
+ * Minimums only go down, so nodes that leave would be counted forever: every EPOCH_ROUNDS rounds the values are drawn
+ * again (a new epoch). The node that gets there first starts it, and the others join it as soon as they hear of it.
+ * A node that just joined only has its own values until it has been through a whole epoch, so the estimate isn't
+ * {@link #isSettled() settled} before that.
+ */
+public class SizeEstimator {
+    public static final int K = 16;
+    public static final int EPOCH_ROUNDS = 30;
+
+    private final Random random = new Random();
+    private int epoch = 0;
+    private int rounds = 0;
+    private float[] mins = new float[SizeEstimator.K];
+    private double lastEstimate = 1; // from the previous epoch
+    private boolean wholeEpoch = false; // we have been in the current epoch since it started
+    private boolean settled = false; // we went through a whole epoch
+
+    public SizeEstimator() {
+        this.draw();
+    }
+
+    public synchronized int getEpoch() {
+        return this.epoch;
+    }
+
+    public synchronized float[] getMins() {
+        return this.mins.clone();
+    }
+
+    /**
+     * A gossip round went by.
+     */
+    public synchronized void tick() {
+        if (++this.rounds >= SizeEstimator.EPOCH_ROUNDS) this.newEpoch(this.epoch + 1);
+    }
+
+    /**
+     * Minimums another node has (ignored if they are from an older epoch: it gets ours and catches up).
+     */
+    public synchronized void merge(int epoch, float[] mins) {
+        if (mins.length != SizeEstimator.K || epoch < this.epoch) return;
+        if (epoch > this.epoch) this.newEpoch(epoch);
+        for (int i = 0; i < SizeEstimator.K; ++i)
+            this.mins[i] = Math.min(this.mins[i], mins[i]);
+    }
+
+    /**
+     * Nodes in the overlay (at least 1). Early in an epoch the minimums haven't reached us yet, so the previous
+     * epoch's estimate is used if it is larger.
+     */
+    public synchronized double estimate() {
+        return Math.max(this.lastEstimate, this.current());
+    }
+
+    public synchronized boolean isSettled() {
+        return this.settled;
+    }
+
+    private double current() {
+        double sum = 0;
+        for (float min : this.mins) sum += min;
+        return Math.max(1, (SizeEstimator.K - 1) / sum);
+    }
+
+    private void newEpoch(int epoch) {
+        if (this.wholeEpoch) this.settled = true;
+        this.wholeEpoch = true;
+        this.lastEstimate = this.current();
+        this.epoch = epoch;
+        this.rounds = 0;
+        this.draw();
+    }
+
+    private void draw() {
+        for (int i = 0; i < SizeEstimator.K; ++i)
+            this.mins[i] = (float) -Math.log(1 - this.random.nextDouble()); // exponential, rate 1
+    }
+}
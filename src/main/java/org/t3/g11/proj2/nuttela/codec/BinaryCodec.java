@@ -0,0 +1,519 @@
+package org.t3.g11.proj2.nuttela.codec;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.t3.g11.proj2.nuttela.DhtPeer;
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+import org.t3.g11.proj2.nuttela.HostsCacheInfo;
+import org.t3.g11.proj2.nuttela.SampledPeer;
+import org.t3.g11.proj2.nuttela.message.*;
+import org.t3.g11.proj2.nuttela.message.query.MultiUserQuery;
+import org.t3.g11.proj2.nuttela.message.query.Query;
+import org.t3.g11.proj2.nuttela.message.query.QueryType;
+import org.t3.g11.proj2.nuttela.message.query.TagQuery;
+import org.t3.g11.proj2.nuttela.message.query.UserQuery;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written wire format. Every message starts with its command, request id and hop source address, followed by
+ * the fields of that command. Counts and small numbers are varints (zig-zag when they can be negative), strings are
+ * length-prefixed UTF-8, ids and guids are plain 4-byte ints (they are hashes) and bloom filters go as raw bit arrays.
+ */
+public class BinaryCodec implements GnuCodec {
+    public static final byte ID = 1;
+    public static final byte VERSION = 1;
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    private static final GnuNodeCMD[] CMDS = GnuNodeCMD.values();
+    private static final QueryType[] QUERY_TYPES = QueryType.values();
+    private static final PongMessage.BloomDelta[] BLOOM_DELTAS = PongMessage.BloomDelta.values();
+    private static final DhtMessage.Op[] DHT_OPS = DhtMessage.Op.values();
+
+    private static final int ADDR_NULL = 0;
+    private static final int ADDR_UNRESOLVED = 1;
+    private static final int ADDR_IPV4 = 4;
+    private static final int ADDR_IPV6 = 6;
+
+    private BinaryCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return BinaryCodec.ID;
+    }
+
+    @Override
+    public byte getVersion() {
+        return BinaryCodec.VERSION;
+    }
+
+    @Override
+    public byte[] encode(GnuMessage msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeByte(msg.getCmd().ordinal());
+        writeVarInt(out, msg.getReqId());
+        writeAddr(out, msg.getAddr());
+        switch (msg.getCmd()) {
+            case NEIGH -> {
+                NeighMessage m = (NeighMessage) msg;
+                out.writeInt(m.getId());
+                writeSignedVarInt(out, m.getNeighbors());
+                writeVarInt(out, m.getCapacity());
+                writeBloom(out, m.getBloomFilter());
+            }
+            case NUMNEIGH -> writeVarInt(out, ((NumNeighMessage) msg).getNeighbors());
+            case MYNEIGH -> {
+                MyNeighMessage m = (MyNeighMessage) msg;
+                out.writeInt(m.getId());
+                writeSignedVarInt(out, m.getNeighbors());
+                writeVarInt(out, m.getCapacity());
+                writeBloom(out, m.getBloomFilter());
+            }
+            case DROP -> out.writeInt(((DropMessage) msg).getId());
+            case PONG -> {
+                PongMessage m = (PongMessage) msg;
+                writeHosts(out, m.getNeighAddrs());
+                writeVarInt(out, m.getCapacity());
+                writeSignedVarInt(out, m.getBloomVersion());
+                out.writeByte(m.getBloomDelta().ordinal());
+                switch (m.getBloomDelta()) {
+                    case UNCHANGED -> {
+                    }
+                    case SPARSE -> {
+                        writeSignedVarInt(out, m.getBaseVersion());
+                        int[] flipped = m.getFlippedBits();
+                        writeVarInt(out, flipped.length);
+                        int prev = 0;
+                        for (int bit : flipped) {
+                            // ascending: the gaps are small
+                            writeVarInt(out, bit - prev);
+                            prev = bit;
+                        }
+                    }
+                    case FULL -> {
+                        writeVarInt(out, m.getBloomFilters().size());
+                        for (BloomFilter<String> bloomFilter : m.getBloomFilters())
+                            writeBloom(out, bloomFilter);
+                    }
+                }
+            }
+            case PING -> writeSignedVarInt(out, ((PingMessage) msg).getBloomVersion());
+            case QUERY -> {
+                QueryMessage m = (QueryMessage) msg;
+                out.writeInt(m.getId());
+                writeQuery(out, m.getQuery());
+            }
+            case QUERYHIT -> {
+                QueryHitMessage m = (QueryHitMessage) msg;
+                out.writeInt(m.getGuid());
+                List<Result> results = m.getResultSet();
+                writeVarInt(out, results.size());
+                for (Result result : results) {
+                    out.writeInt(result.guid);
+                    writeSignedVarLong(out, result.date);
+                    writeString(out, result.ciphered);
+                    writeString(out, result.author);
+                }
+            }
+            case BUSY -> {
+                BusyMessage m = (BusyMessage) msg;
+                out.writeInt(m.getId());
+                out.writeInt(m.getGuid());
+                writeVarInt(out, m.getBackoff());
+            }
+            case DHT -> writeDht(out, (DhtMessage) msg);
+            case LEAF -> {
+                LeafMessage m = (LeafMessage) msg;
+                out.writeInt(m.getId());
+                writeVarInt(out, m.getCapacity());
+                writeBloom(out, m.getBloomFilter());
+            }
+            case SHUFFLE -> {
+                ShuffleMessage m = (ShuffleMessage) msg;
+                writeVarInt(out, m.getPeers().size());
+                for (SampledPeer peer : m.getPeers()) {
+                    writeAddr(out, peer.address());
+                    writeVarInt(out, peer.capacity());
+                    writeVarInt(out, peer.age());
+                }
+                writeVarInt(out, m.getSizeEpoch());
+                writeVarInt(out, m.getSizeMins().length);
+                for (float min : m.getSizeMins()) out.writeFloat(min);
+            }
+            case BOOTSTRAP -> writeHosts(out, ((BootstrapMessage) msg).getHosts());
+            case CANCEL -> {
+                CancelMessage m = (CancelMessage) msg;
+                out.writeInt(m.getId());
+                out.writeInt(m.getGuid());
+            }
+            case DROPOK, DROPERR -> {
+                // nothing but the header
+            }
+        }
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public GnuMessage decode(ByteBuffer in) throws IOException {
+        try {
+            int cmdOrdinal = in.get() & 0xFF;
+            if (cmdOrdinal >= CMDS.length) throw new IOException("Unknown command " + cmdOrdinal);
+            GnuNodeCMD cmd = CMDS[cmdOrdinal];
+            int reqId = readVarInt(in);
+            InetSocketAddress addr = readAddr(in);
+
+            GnuMessage msg = switch (cmd) {
+                case NEIGH -> new NeighMessage(addr, in.getInt(), readSignedVarInt(in), readVarInt(in), readBloom(in));
+                case NUMNEIGH -> new NumNeighMessage(addr, readVarInt(in));
+                case MYNEIGH -> new MyNeighMessage(addr, in.getInt(), readSignedVarInt(in), readVarInt(in), readBloom(in));
+                case DROP -> new DropMessage(addr, in.getInt());
+                case PONG -> {
+                    List<HostsCacheInfo> hosts = readHosts(in);
+                    int capacity = readVarInt(in);
+                    int bloomVersion = readSignedVarInt(in);
+                    int deltaOrdinal = in.get() & 0xFF;
+                    if (deltaOrdinal >= BLOOM_DELTAS.length) throw new IOException("Unknown bloom delta " + deltaOrdinal);
+                    yield switch (BLOOM_DELTAS[deltaOrdinal]) {
+                        case UNCHANGED -> new PongMessage(addr, hosts, capacity, bloomVersion,
+                                PongMessage.BloomDelta.UNCHANGED, null, 0, null);
+                        case SPARSE -> {
+                            int baseVersion = readSignedVarInt(in);
+                            int[] flipped = new int[readCount(in)];
+                            int prev = 0;
+                            for (int i = 0; i < flipped.length; ++i) {
+                                prev += readVarInt(in);
+                                flipped[i] = prev;
+                            }
+                            yield new PongMessage(addr, hosts, capacity, bloomVersion,
+                                    PongMessage.BloomDelta.SPARSE, null, baseVersion, flipped);
+                        }
+                        case FULL -> {
+                            int nLevels = readCount(in);
+                            List<BloomFilter<String>> bloomFilters = new ArrayList<>(nLevels);
+                            for (int i = 0; i < nLevels; ++i)
+                                bloomFilters.add(readBloom(in));
+                            yield new PongMessage(addr, hosts, capacity, bloomVersion,
+                                    PongMessage.BloomDelta.FULL, bloomFilters, 0, null);
+                        }
+                    };
+                }
+                case PING -> new PingMessage(addr, readSignedVarInt(in));
+                case QUERY -> new QueryMessage(addr, in.getInt(), readQuery(in));
+                case QUERYHIT -> {
+                    int guid = in.getInt();
+                    int nResults = readCount(in);
+                    List<Result> results = new ArrayList<>(nResults);
+                    for (int i = 0; i < nResults; ++i) {
+                        results.add(new Result(in.getInt(), readSignedVarLong(in), readString(in), readString(in)));
+                    }
+                    yield new QueryHitMessage(addr, guid, results);
+                }
+                case BUSY -> new BusyMessage(addr, in.getInt(), in.getInt(), readVarInt(in));
+                case DHT -> readDht(in, addr);
+                case LEAF -> new LeafMessage(addr, in.getInt(), readVarInt(in), readBloom(in));
+                case SHUFFLE -> {
+                    int nPeers = readCount(in);
+                    List<SampledPeer> peers = new ArrayList<>(nPeers);
+                    for (int i = 0; i < nPeers; ++i)
+                        peers.add(new SampledPeer(readAddr(in), readVarInt(in), readVarInt(in)));
+                    int sizeEpoch = readVarInt(in);
+                    float[] sizeMins = new float[readCount(in)];
+                    for (int i = 0; i < sizeMins.length; ++i) sizeMins[i] = in.getFloat();
+                    yield new ShuffleMessage(addr, peers, sizeEpoch, sizeMins);
+                }
+                case BOOTSTRAP -> new BootstrapMessage(addr, readHosts(in));
+                case CANCEL -> new CancelMessage(addr, in.getInt(), in.getInt());
+                case DROPOK, DROPERR -> cmd.getMessage(addr);
+            };
+            if (in.hasRemaining()) throw new IOException("Trailing bytes in " + cmd + " frame");
+            msg.setReqId(reqId);
+            return msg;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed frame", e);
+        }
+    }
+
+    private static void writeQuery(DataOutputStream out, Query query) throws IOException {
+        out.writeByte(query.getQueryType().ordinal());
+        writeAddr(out, query.getSourceSocketAddr());
+        out.writeInt(query.getSourceId());
+        out.writeInt(query.getGuid());
+        if (query.getQueryType() != QueryType.MULTI_USER) // that one needs a hit per user
+            writeSignedVarInt(out, query.getNeededHits());
+        writeSignedVarInt(out, query.getTtl());
+        writeString(out, query.getQueryString());
+        if (query.getQueryType() == QueryType.USER)
+            writeSignedVarLong(out, ((UserQuery) query).getLatestDate());
+        if (query.getQueryType() == QueryType.MULTI_USER) {
+            Map<String, Long> users = ((MultiUserQuery) query).getUsers();
+            writeVarInt(out, users.size());
+            for (Map.Entry<String, Long> user : users.entrySet()) {
+                writeString(out, user.getKey());
+                writeSignedVarLong(out, user.getValue());
+            }
+        }
+    }
+
+    private static Query readQuery(ByteBuffer in) throws IOException {
+        int typeOrdinal = in.get() & 0xFF;
+        if (typeOrdinal >= QUERY_TYPES.length) throw new IOException("Unknown query type " + typeOrdinal);
+        InetSocketAddress sourceAddr = readAddr(in);
+        int sourceId = in.getInt();
+        int guid = in.getInt();
+        int neededHits = QUERY_TYPES[typeOrdinal] == QueryType.MULTI_USER ? 0 : readSignedVarInt(in);
+        int ttl = readSignedVarInt(in);
+        String queryString = readString(in);
+        return switch (QUERY_TYPES[typeOrdinal]) {
+            case USER -> new UserQuery(guid, sourceAddr, sourceId, neededHits, ttl, queryString, readSignedVarLong(in));
+            case TAG -> new TagQuery(guid, sourceAddr, sourceId, neededHits, ttl, queryString);
+            case MULTI_USER -> {
+                int nUsers = readCount(in);
+                Map<String, Long> users = new LinkedHashMap<>(nUsers);
+                for (int i = 0; i < nUsers; ++i)
+                    users.put(readString(in), readSignedVarLong(in));
+                yield new MultiUserQuery(guid, sourceAddr, sourceId, ttl, users);
+            }
+        };
+    }
+
+    private static void writeDht(DataOutputStream out, DhtMessage m) throws IOException {
+        out.writeByte(m.getOp().ordinal());
+        switch (m.getOp()) {
+            case FIND -> out.writeInt(m.getKey());
+            case FOUND, CLOSER, NOTIFY -> writePeer(out, m.getNode());
+            case NEIGHBORS -> {
+                out.writeBoolean(m.getNode() != null);
+                if (m.getNode() != null) writePeer(out, m.getNode());
+                writePeers(out, m.getNodes());
+            }
+            case STORE -> {
+                writeString(out, m.getUsername());
+                writePeer(out, m.getNode());
+            }
+            case GET -> writeString(out, m.getUsername());
+            case HOLDERS -> writePeers(out, m.getNodes());
+            case QUERY -> {
+                out.writeInt(m.getGuid());
+                writeString(out, m.getUsername());
+                writeSignedVarLong(out, m.getSince());
+            }
+        }
+    }
+
+    private static DhtMessage readDht(ByteBuffer in, InetSocketAddress addr) throws IOException {
+        int opOrdinal = in.get() & 0xFF;
+        if (opOrdinal >= DHT_OPS.length) throw new IOException("Unknown DHT op " + opOrdinal);
+        return switch (DHT_OPS[opOrdinal]) {
+            case FIND -> DhtMessage.find(addr, in.getInt());
+            case FOUND -> DhtMessage.found(addr, readPeer(in));
+            case CLOSER -> DhtMessage.closer(addr, readPeer(in));
+            case NOTIFY -> DhtMessage.notify(addr, readPeer(in));
+            case NEIGHBORS -> {
+                DhtPeer predecessor = (in.get() != 0) ? readPeer(in) : null;
+                yield DhtMessage.neighbors(addr, predecessor, readPeers(in));
+            }
+            case STORE -> DhtMessage.store(addr, readString(in), readPeer(in));
+            case GET -> DhtMessage.get(addr, readString(in));
+            case HOLDERS -> DhtMessage.holders(addr, readPeers(in));
+            case QUERY -> DhtMessage.query(addr, in.getInt(), readString(in), readSignedVarLong(in));
+        };
+    }
+
+    private static void writePeer(DataOutputStream out, DhtPeer peer) throws IOException {
+        out.writeInt(peer.id());
+        writeAddr(out, peer.address());
+    }
+
+    private static DhtPeer readPeer(ByteBuffer in) throws IOException {
+        return new DhtPeer(in.getInt(), readAddr(in));
+    }
+
+    private static void writePeers(DataOutputStream out, List<DhtPeer> peers) throws IOException {
+        writeVarInt(out, peers.size());
+        for (DhtPeer peer : peers)
+            writePeer(out, peer);
+    }
+
+    private static List<DhtPeer> readPeers(ByteBuffer in) throws IOException {
+        int nPeers = readCount(in);
+        List<DhtPeer> peers = new ArrayList<>(nPeers);
+        for (int i = 0; i < nPeers; ++i)
+            peers.add(readPeer(in));
+        return peers;
+    }
+
+    private static void writeHosts(DataOutputStream out, List<HostsCacheInfo> hosts) throws IOException {
+        writeVarInt(out, hosts.size());
+        for (HostsCacheInfo host : hosts) {
+            out.writeBoolean(host.isAlive);
+            writeAddr(out, host.address);
+            writeVarInt(out, host.capacity);
+        }
+    }
+
+    private static List<HostsCacheInfo> readHosts(ByteBuffer in) throws IOException {
+        int nHosts = readCount(in);
+        List<HostsCacheInfo> hosts = new ArrayList<>(nHosts);
+        for (int i = 0; i < nHosts; ++i) {
+            boolean isAlive = in.get() != 0;
+            hosts.add(new HostsCacheInfo(isAlive, readAddr(in), readVarInt(in)));
+        }
+        return hosts;
+    }
+
+    private static void writeAddr(DataOutputStream out, InetSocketAddress addr) throws IOException {
+        if (addr == null) {
+            out.writeByte(ADDR_NULL);
+            return;
+        }
+
+        if (addr.isUnresolved()) {
+            out.writeByte(ADDR_UNRESOLVED);
+            writeString(out, addr.getHostString());
+        } else {
+            byte[] raw = addr.getAddress().getAddress();
+            out.writeByte(raw.length == 4 ? ADDR_IPV4 : ADDR_IPV6);
+            out.write(raw);
+        }
+        out.writeShort(addr.getPort());
+    }
+
+    private static InetSocketAddress readAddr(ByteBuffer in) throws IOException {
+        int type = in.get();
+        if (type == ADDR_NULL) return null;
+
+        if (type == ADDR_UNRESOLVED) {
+            String host = readString(in);
+            return InetSocketAddress.createUnresolved(host, in.getShort() & 0xFFFF);
+        }
+        if (type != ADDR_IPV4 && type != ADDR_IPV6) throw new IOException("Unknown address type " + type);
+        byte[] raw = new byte[type == ADDR_IPV4 ? 4 : 16];
+        in.get(raw);
+        return new InetSocketAddress(InetAddress.getByAddress(raw), in.getShort() & 0xFFFF);
+    }
+
+    private static void writeBloom(DataOutputStream out, BloomFilter<String> bloomFilter) throws IOException {
+        out.writeBoolean(bloomFilter != null);
+        // strategy, number of hash functions and the bit array itself
+        if (bloomFilter != null) bloomFilter.writeTo(out);
+    }
+
+    private static BloomFilter<String> readBloom(ByteBuffer in) throws IOException {
+        if (in.get() == 0) return null;
+        // strategy (1 byte), hash functions (1 byte), number of longs (4 bytes): check the size before allocating
+        if (in.remaining() < 6) throw new IOException("Truncated bloom filter");
+        int nLongs = in.getInt(in.position() + 2);
+        if (nLongs < 0 || nLongs > (in.remaining() - 6) / Long.BYTES) throw new IOException("Bad bloom filter size");
+        return BloomFilter.readFrom(new ByteBufferInputStream(in), Funnels.stringFunnel(StandardCharsets.UTF_8));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int len = readCount(in);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Reads a count of items that are at least 1 byte each, so a bogus count can't make us allocate huge lists.
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.remaining()) throw new IOException("Bad length " + count);
+        return count;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void writeSignedVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    private static int readSignedVarInt(ByteBuffer in) throws IOException {
+        int raw = readVarInt(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static void writeSignedVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readSignedVarLong(ByteBuffer in) throws IOException {
+        long raw = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            raw |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (raw >>> 1) ^ -(raw & 1);
+        }
+        throw new IOException("Varlong too long");
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!this.buffer.hasRemaining()) return -1;
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.t3.g11.proj2.nuttela.codec;
+
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a message into the payload of a frame and back. Each connection announces its codec in the preamble.
+ */
+public interface GnuCodec {
+    byte getId();
+
+    byte getVersion();
+
+    byte[] encode(GnuMessage msg) throws IOException;
+
+    /**
+     * Decodes a whole frame payload (from position to limit).
+     */
+    GnuMessage decode(ByteBuffer frame) throws IOException;
+
+    static GnuCodec forId(byte id, byte version) throws IOException {
+        if (id == BinaryCodec.ID && version == BinaryCodec.VERSION) return BinaryCodec.INSTANCE;
+        if (id == JavaCodec.ID && version == JavaCodec.VERSION) return JavaCodec.INSTANCE;
+        throw new IOException("Unsupported codec " + id + " (version " + version + ")");
+    }
+
+    static GnuCodec byName(String name) {
+        return switch (name) {
+            case "java" -> JavaCodec.INSTANCE;
+            case "binary" -> BinaryCodec.INSTANCE;
+            default -> throw new IllegalArgumentException("Unknown codec: " + name);
+        };
+    }
+}
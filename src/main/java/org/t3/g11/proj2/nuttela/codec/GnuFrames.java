@@ -0,0 +1,69 @@
+package org.t3.g11.proj2.nuttela.codec;
+
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection layout: a preamble (magic, codec id, codec version) sent once by each side, then length-prefixed frames
+ * whose payload is a single message encoded by that codec.
+ */
+public class GnuFrames {
+    public static final int MAGIC = 0x474E5554; // "GNUT"
+    public static final int PREAMBLE_SIZE = 6;
+    public static final int MAX_FRAME = 1 << 20; // way over the biggest messages (a pong's filters, a set of hits)
+
+    private final DataInputStream in;
+    private final GnuCodec codec;
+    private byte[] buffer = new byte[512]; // reused between frames: decoders copy out what they keep
+
+    private GnuFrames(DataInputStream in, GnuCodec codec) {
+        this.in = in;
+        this.codec = codec;
+    }
+
+    public static void writePreamble(DataOutputStream out, GnuCodec codec) throws IOException {
+        out.writeInt(GnuFrames.MAGIC);
+        out.writeByte(codec.getId());
+        out.writeByte(codec.getVersion());
+    }
+
+    public static GnuCodec readPreamble(ByteBuffer in) throws IOException {
+        if (in.getInt() != GnuFrames.MAGIC) throw new IOException("Not a gnutella connection");
+        return GnuCodec.forId(in.get(), in.get());
+    }
+
+    /**
+     * Reads the other side's preamble and returns a reader for the frames that follow it.
+     */
+    public static GnuFrames open(DataInputStream in) throws IOException {
+        byte[] preamble = new byte[GnuFrames.PREAMBLE_SIZE];
+        in.readFully(preamble);
+        return new GnuFrames(in, GnuFrames.readPreamble(ByteBuffer.wrap(preamble)));
+    }
+
+    public static void checkFrameLength(int len) throws IOException {
+        if (len <= 0 || len > GnuFrames.MAX_FRAME) throw new IOException("Bad frame length " + len);
+    }
+
+    public static void writeFrame(DataOutputStream out, GnuCodec codec, GnuMessage msg) throws IOException {
+        byte[] payload = codec.encode(msg);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    public GnuCodec getCodec() {
+        return this.codec;
+    }
+
+    public GnuMessage readFrame() throws IOException {
+        int len = this.in.readInt();
+        GnuFrames.checkFrameLength(len);
+        if (len > this.buffer.length) this.buffer = new byte[Math.max(len, this.buffer.length * 2)];
+        this.in.readFully(this.buffer, 0, len);
+        return this.codec.decode(ByteBuffer.wrap(this.buffer, 0, len));
+    }
+}
@@ -0,0 +1,54 @@
+package org.t3.g11.proj2.nuttela.codec;
+
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The original format: every message goes through java serialization. Kept while nodes migrate to the binary codec.
+ */
+public class JavaCodec implements GnuCodec {
+    public static final byte ID = 0;
+    public static final byte VERSION = 1;
+    public static final JavaCodec INSTANCE = new JavaCodec();
+
+    // only our messages (and what they are made of) can be deserialized
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;org.t3.g11.proj2.nuttela.**;java.lang.*;java.util.*;java.net.*;"
+                    + "com.google.common.hash.*;com.google.common.collect.*;!*");
+
+    private JavaCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return JavaCodec.ID;
+    }
+
+    @Override
+    public byte getVersion() {
+        return JavaCodec.VERSION;
+    }
+
+    @Override
+    public byte[] encode(GnuMessage msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(msg);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public GnuMessage decode(ByteBuffer frame) throws IOException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(frame.array(),
+                frame.arrayOffset() + frame.position(), frame.remaining());
+        try (ObjectInputStream ois = new ObjectInputStream(bis)) {
+            ois.setObjectInputFilter(JavaCodec.FILTER);
+            return (GnuMessage) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid message", e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.IOException;
+
+/**
+ * One side of a long-lived overlay connection. Replies are sent through the same channel the request came from.
+ */
+public interface GnuChannel {
+    void send(GnuMessage msg) throws IOException;
+}
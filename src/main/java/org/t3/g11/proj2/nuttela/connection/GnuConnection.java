@@ -0,0 +1,129 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import org.t3.g11.proj2.nuttela.codec.GnuCodec;
+import org.t3.g11.proj2.nuttela.codec.GnuFrames;
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outgoing long-lived connection to another node. Many requests can be in flight at once: each one is tagged with
+ * its own request id and the reader thread completes the matching future when the reply arrives.
+ */
+public class GnuConnection implements GnuChannel, Closeable {
+    private final InetSocketAddress endpoint;
+    private final Socket socket;
+    private final GnuCodec codec;
+    private final DataOutputStream out;
+    private final GnuFrames in;
+
+    private final ConcurrentHashMap<Integer, CompletableFuture<GnuMessage>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReqId = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    private volatile long lastUsed;
+
+    public GnuConnection(InetSocketAddress endpoint, int connectTimeout, GnuCodec codec, ThreadFactory readers)
+            throws IOException {
+        this.endpoint = endpoint;
+        this.codec = codec;
+        this.socket = new Socket();
+        try {
+            this.socket.connect(endpoint, connectTimeout);
+            this.socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+            GnuFrames.writePreamble(this.out, codec);
+            this.out.flush();
+            // the other side answers with its own preamble
+            this.socket.setSoTimeout(connectTimeout);
+            this.in = GnuFrames.open(new DataInputStream(new BufferedInputStream(this.socket.getInputStream())));
+            this.socket.setSoTimeout(0);
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+        this.lastUsed = System.currentTimeMillis();
+
+        readers.newThread(this::readLoop).start();
+    }
+
+    public InetSocketAddress getEndpoint() {
+        return this.endpoint;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    @Override
+    public void send(GnuMessage msg) throws IOException {
+        if (this.closed) throw new IOException("Connection to " + this.endpoint + " is closed");
+        this.lastUsed = System.currentTimeMillis();
+        try {
+            synchronized (this.out) {
+                GnuFrames.writeFrame(this.out, this.codec, msg);
+                this.out.flush();
+            }
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request and returns a future that is completed with the reply carrying the same request id.
+     */
+    public CompletableFuture<GnuMessage> request(GnuMessage msg) {
+        int reqId = this.nextReqId.updateAndGet(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+        CompletableFuture<GnuMessage> future = new CompletableFuture<>();
+        this.pending.put(reqId, future);
+        future.whenComplete((reply, ex) -> this.pending.remove(reqId));
+
+        msg.setReqId(reqId);
+        try {
+            this.send(msg);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void readLoop() {
+        try {
+            while (!this.closed) {
+                GnuMessage reply = this.in.readFrame();
+                CompletableFuture<GnuMessage> future = this.pending.get(reply.getReqId());
+                if (future != null) future.complete(reply);
+                else System.err.println("Unmatched reply from " + this.endpoint + ": " + reply);
+            }
+        } catch (IOException e) {
+            // link broke (or the other side hung up): the pool reconnects on next use
+        } finally {
+            this.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.closed) return;
+        this.closed = true;
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+
+        IOException cause = new IOException("Connection to " + this.endpoint + " was closed");
+        for (CompletableFuture<GnuMessage> future : this.pending.values())
+            future.completeExceptionally(cause);
+    }
+}
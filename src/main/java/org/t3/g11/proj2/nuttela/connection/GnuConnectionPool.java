@@ -0,0 +1,134 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import org.t3.g11.proj2.nuttela.codec.GnuCodec;
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+
+/**
+ * Keeps (at most) one long-lived connection per remote node and reconnects when a link breaks.
+ */
+public class GnuConnectionPool {
+    public static final int IDLE_TIMEOUT = 60000;
+
+    // a future per endpoint, so connecting (which can take up to the timeout) happens outside the map
+    private final ConcurrentHashMap<InetSocketAddress, CompletableFuture<GnuConnection>> connections =
+            new ConcurrentHashMap<>();
+    private final int timeout;
+    private final GnuCodec codec;
+    private final ThreadFactory readers;
+
+    public GnuConnectionPool(int timeout, GnuCodec codec, ThreadFactory readers) {
+        this.timeout = timeout;
+        this.codec = codec;
+        this.readers = readers;
+    }
+
+    public GnuConnection get(InetSocketAddress endpoint) throws IOException {
+        while (true) {
+            CompletableFuture<GnuConnection> created = new CompletableFuture<>();
+            CompletableFuture<GnuConnection> future = this.connections.putIfAbsent(endpoint, created);
+            if (future == null) {
+                // we connect, whoever wants the same endpoint in the meantime waits on the future
+                future = created;
+                try {
+                    created.complete(new GnuConnection(endpoint, this.timeout, this.codec, this.readers));
+                } catch (IOException | RuntimeException e) {
+                    this.connections.remove(endpoint, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+
+            GnuConnection conn;
+            try {
+                conn = future.join();
+            } catch (CompletionException e) {
+                throw (e.getCause() instanceof IOException ioe) ? ioe : new IOException(e.getCause());
+            }
+            if (!conn.isClosed()) return conn;
+            this.connections.remove(endpoint, future); // broken link: connect again
+        }
+    }
+
+    /**
+     * @return null if it is still connecting or couldn't connect
+     */
+    private static GnuConnection connected(CompletableFuture<GnuConnection> future) {
+        return (future.isDone() && !future.isCompletedExceptionally()) ? future.join() : null;
+    }
+
+    /**
+     * Fire-and-forget send. A stale connection (e.g. the other node restarted) is replaced once before giving up.
+     */
+    public void send(InetSocketAddress endpoint, GnuMessage msg) throws IOException {
+        try {
+            this.get(endpoint).send(msg);
+        } catch (IOException e) {
+            this.get(endpoint).send(msg);
+        }
+    }
+
+    public CompletableFuture<GnuMessage> requestAsync(InetSocketAddress endpoint, GnuMessage msg) {
+        GnuConnection conn;
+        try {
+            conn = this.get(endpoint);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return conn.request(msg);
+    }
+
+    /**
+     * --->> Request
+     * <<--- Reply (same request id)
+     */
+    public GnuMessage request(InetSocketAddress endpoint, GnuMessage msg) throws IOException {
+        GnuConnection conn = this.get(endpoint);
+        CompletableFuture<GnuMessage> future = conn.request(msg);
+        if (future.isCompletedExceptionally() && conn.isClosed()) {
+            // the link was already broken when we tried to send => reconnect and retry once
+            future = this.get(endpoint).request(msg);
+        }
+
+        try {
+            return future.get(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException ioe) ? ioe : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Request to " + endpoint + " timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + endpoint);
+        }
+    }
+
+    public void close(InetSocketAddress endpoint) {
+        CompletableFuture<GnuConnection> future = this.connections.remove(endpoint);
+        GnuConnection conn = (future == null) ? null : GnuConnectionPool.connected(future);
+        if (conn != null) conn.close();
+    }
+
+    public void closeIdle() {
+        long now = System.currentTimeMillis();
+        this.connections.values().removeIf(future -> {
+            if (!future.isDone()) return false; // still connecting
+            GnuConnection conn = GnuConnectionPool.connected(future);
+            if (conn == null || conn.isClosed()) return true;
+            if (now - conn.getLastUsed() < GnuConnectionPool.IDLE_TIMEOUT) return false;
+            conn.close();
+            return true;
+        });
+    }
+
+    public void closeAll() {
+        for (CompletableFuture<GnuConnection> future : this.connections.values()) {
+            GnuConnection conn = GnuConnectionPool.connected(future);
+            if (conn != null) conn.close();
+        }
+        this.connections.clear();
+    }
+}
@@ -0,0 +1,7 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+public interface GnuMessageHandler {
+    void handleMessage(GnuMessage msg, GnuChannel channel);
+}
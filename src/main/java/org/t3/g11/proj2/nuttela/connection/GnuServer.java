@@ -0,0 +1,152 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector-based listener. A single thread accepts connections and moves bytes in and out of them; fully decoded
+ * messages are handed to the handler, which is expected to process them somewhere else.
+ */
+public class GnuServer implements Runnable {
+    public static final int BACKLOG = 100;
+    public static final long MAX_READ_BYTES = 32 << 20; // frames bigger than a session's usual buffer, all together
+    public static final int SWEEP_FREQ = 1000; // ms between looks for idle and stalled sessions
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final GnuMessageHandler handler;
+    private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong readBytes = new AtomicLong(0);
+    private long lastSweep = System.currentTimeMillis(); // event loop only
+
+    public GnuServer(InetSocketAddress addr, GnuMessageHandler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            this.serverChannel.bind(addr, GnuServer.BACKLOG);
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            this.serverChannel.close();
+            this.selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Event loop: runs until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                this.selector.select(GnuServer.SWEEP_FREQ);
+                this.sweep();
+
+                // sessions that got something to send since the last round
+                NioSession session;
+                while ((session = this.pendingWrites.poll()) != null)
+                    session.enableWrite();
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    session = (NioSession) key.attachment();
+                    try {
+                        if (key.isReadable()) session.onReadable();
+                        if (key.isValid() && key.isWritable()) session.onWritable();
+                    } catch (IOException e) {
+                        System.err.println("Session with " + session.getRemoteAddress() + " ended: " + e.getMessage());
+                        session.close();
+                    } catch (RuntimeException e) {
+                        // e.g. a message the codec chokes on: only that session goes, the listener keeps going
+                        System.err.println("Session with " + session.getRemoteAddress() + " failed:");
+                        e.printStackTrace();
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Server loop failed with exception:");
+            e.printStackTrace();
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Closes the sessions that went quiet or stopped halfway through a frame (the selector never hears of them).
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastSweep < GnuServer.SWEEP_FREQ) return;
+        this.lastSweep = now;
+
+        for (SelectionKey key : this.selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof NioSession session)) continue;
+            String staleness = session.staleness(now);
+            if (staleness == null) continue;
+            System.err.println("Session with " + session.getRemoteAddress() + " " + staleness + ": closing it");
+            session.close();
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = this.serverChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+            key.attach(new NioSession(this, channel, key, this.handler));
+        } catch (IOException e) {
+            System.err.println("Accepting failed with exception:");
+            e.printStackTrace();
+        }
+    }
+
+    boolean reserveReadBytes(int bytes) {
+        if (this.readBytes.addAndGet(bytes) <= GnuServer.MAX_READ_BYTES) return true;
+        this.readBytes.addAndGet(-bytes);
+        return false;
+    }
+
+    void releaseReadBytes(int bytes) {
+        this.readBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Called from any thread: asks the event loop to start writing the session's queued frames.
+     */
+    void requestWrite(NioSession session) {
+        this.pendingWrites.add(session);
+        this.selector.wakeup();
+    }
+
+    public void close() {
+        try {
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.attachment() instanceof NioSession session) session.close();
+            }
+            this.serverChannel.close();
+            this.selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.t3.g11.proj2.nuttela.connection;
+
+import org.t3.g11.proj2.nuttela.codec.GnuCodec;
+import org.t3.g11.proj2.nuttela.codec.GnuFrames;
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Incoming connection served by the {@link GnuServer} event loop. Reads are reassembled into frames in the read
+ * buffer; replies are queued by the workers and written out when the socket is writable.
+ * <p>
+ * The event loop closes sessions that sent nothing for IDLE_TIMEOUT (longer than the other side keeps an unused
+ * connection), and sessions that have had the same frame (or the preamble) half-sent for STALL_TIMEOUT, however
+ * slowly its bytes keep coming.
+ */
+class NioSession implements GnuChannel {
+    public static final int READ_BUFFER = 8192;
+    public static final int MAX_QUEUED_BYTES = 8 << 20; // the other side isn't reading its replies
+    public static final int IDLE_TIMEOUT = 2 * GnuConnectionPool.IDLE_TIMEOUT;
+    public static final int STALL_TIMEOUT = 10000;
+
+    private final GnuServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final GnuMessageHandler handler;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(NioSession.READ_BUFFER);
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    private final AtomicInteger bigBufferBytes = new AtomicInteger(0); // read buffer over READ_BUFFER (server budget)
+    private volatile GnuCodec codec = null; // whatever the other side announced
+    private volatile boolean closed = false;
+    private long lastRead = System.currentTimeMillis(); // event loop only
+    private long partialSince = System.currentTimeMillis(); // event loop only: 0 => no half-read frame
+
+    NioSession(GnuServer server, SocketChannel channel, SelectionKey key, GnuMessageHandler handler) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return this.channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public void send(GnuMessage msg) throws IOException {
+        if (this.closed) throw new IOException("Session with " + this.getRemoteAddress() + " is closed");
+        byte[] payload = this.codec.encode(msg);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        this.enqueue(frame);
+    }
+
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        if (this.queuedBytes.addAndGet(buffer.remaining()) > NioSession.MAX_QUEUED_BYTES) {
+            this.close();
+            throw new IOException("Too many unsent bytes for " + this.getRemoteAddress());
+        }
+        this.writeQueue.add(buffer);
+        this.server.requestWrite(this);
+    }
+
+    /**
+     * Event loop only.
+     */
+    void onReadable() throws IOException {
+        if (this.channel.read(this.readBuffer) < 0) {
+            this.close(); // other side hung up
+            return;
+        }
+        long now = System.currentTimeMillis();
+        this.lastRead = now;
+
+        this.readBuffer.flip();
+        int needed = 0;
+        if (this.codec == null) {
+            if (this.readBuffer.remaining() < GnuFrames.PREAMBLE_SIZE) {
+                this.readBuffer.compact();
+                return;
+            }
+            this.codec = GnuFrames.readPreamble(this.readBuffer);
+            ByteBuffer preamble = ByteBuffer.allocate(GnuFrames.PREAMBLE_SIZE);
+            preamble.putInt(GnuFrames.MAGIC).put(this.codec.getId()).put(this.codec.getVersion()).flip();
+            this.enqueue(preamble);
+        }
+
+        while (this.readBuffer.remaining() >= Integer.BYTES) {
+            int start = this.readBuffer.position();
+            int len = this.readBuffer.getInt(start);
+            GnuFrames.checkFrameLength(len);
+            if (this.readBuffer.remaining() < Integer.BYTES + len) {
+                needed = Integer.BYTES + len; // wait for the rest of the frame
+                break;
+            }
+
+            ByteBuffer frame = this.readBuffer.slice(start + Integer.BYTES, len);
+            this.readBuffer.position(start + Integer.BYTES + len);
+            this.handler.handleMessage(this.codec.decode(frame), this);
+        }
+
+        this.readBuffer.compact();
+        if (needed > this.readBuffer.capacity()) {
+            // only as many big frames as the server's budget allows are buffered at once, whoever announces them
+            int extra = needed - this.readBuffer.capacity();
+            if (!this.server.reserveReadBytes(extra))
+                throw new IOException("No room to buffer a " + needed + " byte frame");
+            this.bigBufferBytes.addAndGet(extra);
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            this.readBuffer.flip();
+            bigger.put(this.readBuffer);
+            this.readBuffer = bigger;
+        } else if (this.readBuffer.position() == 0 && this.readBuffer.capacity() > NioSession.READ_BUFFER) {
+            // done with the big frame: give the memory back
+            this.readBuffer = ByteBuffer.allocate(NioSession.READ_BUFFER);
+            this.server.releaseReadBytes(this.bigBufferBytes.getAndSet(0));
+        }
+
+        if (this.codec != null && this.readBuffer.position() == 0) this.partialSince = 0;
+        else if (this.partialSince == 0) this.partialSince = now;
+    }
+
+    /**
+     * Event loop only.
+     *
+     * @return why the session should be closed (null if it is fine)
+     */
+    String staleness(long now) {
+        if (this.partialSince != 0 && now - this.partialSince > NioSession.STALL_TIMEOUT)
+            return "stalled mid-frame";
+        if (now - this.lastRead > NioSession.IDLE_TIMEOUT) return "idle";
+        return null;
+    }
+
+    /**
+     * Event loop only.
+     */
+    void onWritable() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = this.writeQueue.peek()) != null) {
+            this.channel.write(buffer);
+            if (buffer.hasRemaining()) return; // socket buffer is full: wait until it is writable again
+            this.writeQueue.poll();
+            this.queuedBytes.addAndGet(-buffer.limit());
+        }
+        // anything queued after this gets another requestWrite
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Event loop only.
+     */
+    void enableWrite() {
+        if (this.key.isValid())
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    public void close() {
+        if (this.closed) return;
+        this.closed = true;
+        this.server.releaseReadBytes(this.bigBufferBytes.getAndSet(0));
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
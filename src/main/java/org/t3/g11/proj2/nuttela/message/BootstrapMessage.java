@@ -0,0 +1,24 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+import org.t3.g11.proj2.nuttela.HostsCacheInfo;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * A joining node asking for hosts to join through (hosts: just itself, so it can be handed out to the ones that come
+ * after it). Answered with another BOOTSTRAP with some of the live hosts with the most capacity we know of.
+ */
+public class BootstrapMessage extends GnuMessage {
+    private final List<HostsCacheInfo> hosts;
+
+    public BootstrapMessage(InetSocketAddress addr, List<HostsCacheInfo> hosts) {
+        super(GnuNodeCMD.BOOTSTRAP, addr);
+        this.hosts = hosts;
+    }
+
+    public List<HostsCacheInfo> getHosts() {
+        return this.hosts;
+    }
+}
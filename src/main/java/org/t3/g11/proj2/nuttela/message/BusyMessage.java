@@ -0,0 +1,27 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Sent back for a query that didn't fit in our queue for the sender: it should prefer other neighbors for a while.
+ */
+public class BusyMessage extends GnuIdMessage {
+    private final int guid; // the rejected query
+    private final int backoff; // ms
+
+    public BusyMessage(InetSocketAddress addr, int id, int guid, int backoff) {
+        super(GnuNodeCMD.BUSY, addr, id);
+        this.guid = guid;
+        this.backoff = backoff;
+    }
+
+    public int getGuid() {
+        return this.guid;
+    }
+
+    public int getBackoff() {
+        return this.backoff;
+    }
+}
@@ -0,0 +1,22 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The query doesn't need more hits (its source got enough, or gave up on it): relays drop their queued copies, stop
+ * forwarding it and pass the CANCEL on to the neighbors they sent it to.
+ */
+public class CancelMessage extends GnuIdMessage {
+    private final int guid;
+
+    public CancelMessage(InetSocketAddress addr, int id, int guid) {
+        super(GnuNodeCMD.CANCEL, addr, id);
+        this.guid = guid;
+    }
+
+    public int getGuid() {
+        return this.guid;
+    }
+}
@@ -0,0 +1,113 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.DhtPeer;
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Messages of the DHT ring used for user lookups. Each op only uses some of the fields.
+ */
+public class DhtMessage extends GnuMessage {
+    public enum Op {
+        FIND, // key => FOUND or CLOSER
+        FOUND, // node: the successor of the key
+        CLOSER, // node: closer to the key than us, ask it
+        NOTIFY, // node: the sender, which may be our predecessor => NEIGHBORS
+        NEIGHBORS, // node: our predecessor (null if we don't know it), nodes: our successors
+        STORE, // username, node: holds posts of username (no reply)
+        GET, // username => HOLDERS
+        HOLDERS, // nodes: the ones holding posts of the user
+        QUERY // guid, username, since => QUERYHIT
+    }
+
+    private final Op op;
+    private final int key;
+    private final DhtPeer node;
+    private final List<DhtPeer> nodes;
+    private final String username;
+    private final long since;
+    private final int guid;
+
+    private DhtMessage(InetSocketAddress addr, Op op, int key, DhtPeer node, List<DhtPeer> nodes, String username,
+                       long since, int guid) {
+        super(GnuNodeCMD.DHT, addr);
+        this.op = op;
+        this.key = key;
+        this.node = node;
+        this.nodes = nodes;
+        this.username = username;
+        this.since = since;
+        this.guid = guid;
+    }
+
+    public static DhtMessage find(InetSocketAddress addr, int key) {
+        return new DhtMessage(addr, Op.FIND, key, null, null, null, 0, 0);
+    }
+
+    public static DhtMessage found(InetSocketAddress addr, DhtPeer successor) {
+        return new DhtMessage(addr, Op.FOUND, 0, successor, null, null, 0, 0);
+    }
+
+    public static DhtMessage closer(InetSocketAddress addr, DhtPeer node) {
+        return new DhtMessage(addr, Op.CLOSER, 0, node, null, null, 0, 0);
+    }
+
+    public static DhtMessage notify(InetSocketAddress addr, DhtPeer self) {
+        return new DhtMessage(addr, Op.NOTIFY, 0, self, null, null, 0, 0);
+    }
+
+    public static DhtMessage neighbors(InetSocketAddress addr, DhtPeer predecessor, List<DhtPeer> successors) {
+        return new DhtMessage(addr, Op.NEIGHBORS, 0, predecessor, successors, null, 0, 0);
+    }
+
+    public static DhtMessage store(InetSocketAddress addr, String username, DhtPeer holder) {
+        return new DhtMessage(addr, Op.STORE, 0, holder, null, username, 0, 0);
+    }
+
+    public static DhtMessage get(InetSocketAddress addr, String username) {
+        return new DhtMessage(addr, Op.GET, 0, null, null, username, 0, 0);
+    }
+
+    public static DhtMessage holders(InetSocketAddress addr, List<DhtPeer> holders) {
+        return new DhtMessage(addr, Op.HOLDERS, 0, null, holders, null, 0, 0);
+    }
+
+    public static DhtMessage query(InetSocketAddress addr, int guid, String username, long since) {
+        return new DhtMessage(addr, Op.QUERY, 0, null, null, username, since, guid);
+    }
+
+    public Op getOp() {
+        return this.op;
+    }
+
+    public int getKey() {
+        return this.key;
+    }
+
+    public DhtPeer getNode() {
+        return this.node;
+    }
+
+    public List<DhtPeer> getNodes() {
+        return this.nodes;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public long getSince() {
+        return this.since;
+    }
+
+    public int getGuid() {
+        return this.guid;
+    }
+
+    @Override
+    public String toString() {
+        return "Message: " + this.cmd + " " + this.op + " " + this.addr;
+    }
+}
@@ -9,6 +9,7 @@ import java.net.InetSocketAddress;
 public class GnuMessage implements Serializable {
     protected final GnuNodeCMD cmd;
     protected InetSocketAddress addr; // hop source address
+    protected int reqId = 0; // matches replies to requests on a shared connection (0 => not a request)
 
     public GnuMessage(GnuNodeCMD cmd, InetSocketAddress addr) {
         this.cmd = cmd;
@@ -27,6 +28,14 @@ public class GnuMessage implements Serializable {
         this.addr = addr;
     }
 
+    public int getReqId() {
+        return this.reqId;
+    }
+
+    public void setReqId(int reqId) {
+        this.reqId = reqId;
+    }
+
     public InetAddress getInetAddr() {
         return this.addr.getAddress();
     }
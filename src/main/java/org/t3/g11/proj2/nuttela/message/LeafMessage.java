@@ -0,0 +1,28 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import com.google.common.hash.BloomFilter;
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A leaf asking an ultrapeer to take it (answered with MYNEIGH: REJECT, or how many leaves the ultrapeer has).
+ */
+public class LeafMessage extends GnuIdMessage {
+    private final int capacity;
+    private final BloomFilter<String> bloomFilter;
+
+    public LeafMessage(InetSocketAddress addr, int id, int capacity, BloomFilter<String> bloomFilter) {
+        super(GnuNodeCMD.LEAF, addr, id);
+        this.capacity = capacity;
+        this.bloomFilter = bloomFilter;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public BloomFilter<String> getBloomFilter() {
+        return this.bloomFilter;
+    }
+}
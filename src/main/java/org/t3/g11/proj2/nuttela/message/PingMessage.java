@@ -0,0 +1,18 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+
+import java.net.InetSocketAddress;
+
+public class PingMessage extends GnuMessage {
+    private final int bloomVersion; // version of the other side's filter we already have
+
+    public PingMessage(InetSocketAddress addr, int bloomVersion) {
+        super(GnuNodeCMD.PING, addr);
+        this.bloomVersion = bloomVersion;
+    }
+
+    public int getBloomVersion() {
+        return this.bloomVersion;
+    }
+}
@@ -8,15 +8,34 @@ import java.net.InetSocketAddress;
 import java.util.List;
 
 public class PongMessage extends GnuMessage {
+    /**
+     * How the bloom filter is carried: not at all (the pinger has the current version), as the bits that flipped
+     * since the version the pinger has, or whole.
+     */
+    public enum BloomDelta {
+        UNCHANGED,
+        SPARSE,
+        FULL
+    }
+
     protected final List<HostsCacheInfo> addrs;
     protected int capacity;
-    protected BloomFilter<String> bloomFilter;
+    protected int bloomVersion;
+    protected BloomDelta bloomDelta;
+    protected List<BloomFilter<String>> bloomFilters; // FULL only: theirs, then the ones for depth 2, 3, ...
+    protected int baseVersion; // SPARSE only: version the flips apply to
+    protected int[] flippedBits; // SPARSE only: ascending
 
-    public PongMessage(InetSocketAddress addr, List<HostsCacheInfo> addrs, int capacity, BloomFilter<String> bloomFilter) {
+    public PongMessage(InetSocketAddress addr, List<HostsCacheInfo> addrs, int capacity, int bloomVersion,
+                       BloomDelta bloomDelta, List<BloomFilter<String>> bloomFilters, int baseVersion, int[] flippedBits) {
         super(GnuNodeCMD.PONG, addr);
         this.addrs = addrs;
         this.capacity = capacity;
-        this.bloomFilter = bloomFilter;
+        this.bloomVersion = bloomVersion;
+        this.bloomDelta = bloomDelta;
+        this.bloomFilters = bloomFilters;
+        this.baseVersion = baseVersion;
+        this.flippedBits = flippedBits;
     }
 
     public List<HostsCacheInfo> getNeighAddrs() {
@@ -31,7 +50,23 @@ public class PongMessage extends GnuMessage {
         return capacity;
     }
 
-    public BloomFilter<String> getBloomFilter() {
-        return bloomFilter;
+    public int getBloomVersion() {
+        return bloomVersion;
+    }
+
+    public BloomDelta getBloomDelta() {
+        return bloomDelta;
+    }
+
+    public List<BloomFilter<String>> getBloomFilters() {
+        return bloomFilters;
+    }
+
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+
+    public int[] getFlippedBits() {
+        return flippedBits;
     }
 }
@@ -0,0 +1,37 @@
+package org.t3.g11.proj2.nuttela.message;
+
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+import org.t3.g11.proj2.nuttela.SampledPeer;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Part of the sender's peer sampling view (the request also has a fresh entry for the sender). Answered with another
+ * SHUFFLE with part of the other node's view. Both carry the sender's network size estimate (its epoch and minimums,
+ * see SizeEstimator).
+ */
+public class ShuffleMessage extends GnuMessage {
+    private final List<SampledPeer> peers;
+    private final int sizeEpoch;
+    private final float[] sizeMins;
+
+    public ShuffleMessage(InetSocketAddress addr, List<SampledPeer> peers, int sizeEpoch, float[] sizeMins) {
+        super(GnuNodeCMD.SHUFFLE, addr);
+        this.peers = peers;
+        this.sizeEpoch = sizeEpoch;
+        this.sizeMins = sizeMins;
+    }
+
+    public List<SampledPeer> getPeers() {
+        return this.peers;
+    }
+
+    public int getSizeEpoch() {
+        return this.sizeEpoch;
+    }
+
+    public float[] getSizeMins() {
+        return this.sizeMins;
+    }
+}
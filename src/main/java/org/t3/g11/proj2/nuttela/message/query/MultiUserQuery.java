@@ -0,0 +1,62 @@
+package org.t3.g11.proj2.nuttela.message.query;
+
+import org.t3.g11.proj2.nuttela.message.Result;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Many user queries in one: every (username, latest post date we have) pair is looked up on its own, and a pair
+ * stops travelling as soon as some node answers it.
+ */
+public class MultiUserQuery extends Query {
+    private final LinkedHashMap<String, Long> users; // username => latestDate
+
+    public MultiUserQuery(InetSocketAddress sourceAddr, int sourceId, Map<String, Long> users) {
+        super(sourceAddr, sourceId, users.size(), "", QueryType.MULTI_USER);
+        this.users = new LinkedHashMap<>(users);
+    }
+
+    public MultiUserQuery(int guid, InetSocketAddress sourceAddr, int sourceId, int ttl, Map<String, Long> users) {
+        super(guid, sourceAddr, sourceId, users.size(), ttl, "", QueryType.MULTI_USER);
+        this.users = new LinkedHashMap<>(users);
+    }
+
+    public Map<String, Long> getUsers() {
+        return this.users;
+    }
+
+    /**
+     * Same query (guid, source, ttl) for only some of the users.
+     */
+    public MultiUserQuery part(Map<String, Long> users) {
+        return new MultiUserQuery(this.guid, this.sourceAddr, this.sourceId, this.ttl, users);
+    }
+
+    @Override
+    public MultiUserQuery withTtl(int ttl) {
+        return new MultiUserQuery(this.guid, this.sourceAddr, this.sourceId, ttl, this.users);
+    }
+
+    @Override
+    public void addHits(List<Result> results) {
+        for (Result result : results)
+            this.users.remove(result.author);
+        this.neededHits = this.users.size();
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (String username : this.users.keySet())
+            size += username.length() + 8; // 8 bytes from the latestDate
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Query(%s - %d - %s)", this.queryType, this.guid, this.users.keySet());
+    }
+}
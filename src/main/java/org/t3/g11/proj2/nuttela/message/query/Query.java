@@ -1,10 +1,12 @@
 package org.t3.g11.proj2.nuttela.message.query;
 
+import org.t3.g11.proj2.nuttela.message.Result;
 import org.t3.g11.proj2.utils.Utils;
 
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.Objects;
 
 public abstract class Query implements Serializable {
@@ -35,6 +37,20 @@ public abstract class Query implements Serializable {
         }
     }
 
+    /**
+     * Rebuilds a query that came from the wire (keeps its guid).
+     */
+    protected Query(int guid, InetSocketAddress sourceAddr, int sourceId, int neededHits, int ttl, String queryString,
+                    QueryType type) {
+        this.guid = guid;
+        this.sourceAddr = sourceAddr;
+        this.sourceId = sourceId;
+        this.neededHits = neededHits;
+        this.ttl = ttl;
+        this.queryString = queryString;
+        this.queryType = type;
+    }
+
     public Query(InetSocketAddress sourceAddr, int sourceId, int neededHits, String queryString, QueryType type) {
         this(sourceAddr, sourceId, neededHits, STARTTTL, queryString, type);
     }
@@ -43,6 +59,10 @@ public abstract class Query implements Serializable {
         return this.sourceAddr.getAddress();
     }
 
+    public InetSocketAddress getSourceSocketAddr() {
+        return this.sourceAddr;
+    }
+
     public int getSourcePort() {
         return this.sourceAddr.getPort();
     }
@@ -63,14 +83,30 @@ public abstract class Query implements Serializable {
         this.neededHits -= amount;
     }
 
+    /**
+     * Called with the results found for this query on a node.
+     */
+    public void addHits(List<Result> results) {
+        this.decreaseNeededHits(results.size());
+    }
+
     public int getNeededHits() {
         return this.neededHits;
     }
 
+    public int getTtl() {
+        return this.ttl;
+    }
+
     public int decreaseTtl() {
         return --this.ttl;
     }
 
+    /**
+     * Same query (guid, source, what it asks for) with another ttl, to send it further.
+     */
+    public abstract Query withTtl(int ttl);
+
     public int getSize() {
         return this.queryString.length();
     }
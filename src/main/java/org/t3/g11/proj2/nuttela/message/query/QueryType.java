@@ -2,5 +2,6 @@ package org.t3.g11.proj2.nuttela.message.query;
 
 public enum QueryType {
     USER,
-    TAG
+    TAG,
+    MULTI_USER
 }
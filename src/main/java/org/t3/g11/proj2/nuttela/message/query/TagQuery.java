@@ -10,4 +10,13 @@ public class TagQuery extends Query {
     public TagQuery(InetSocketAddress sourceAddr, int sourceId, int neededHits, String queryString) {
         super(sourceAddr, sourceId, neededHits, queryString, QueryType.TAG);
     }
+
+    public TagQuery(int guid, InetSocketAddress sourceAddr, int sourceId, int neededHits, int ttl, String queryString) {
+        super(guid, sourceAddr, sourceId, neededHits, ttl, queryString, QueryType.TAG);
+    }
+
+    @Override
+    public TagQuery withTtl(int ttl) {
+        return new TagQuery(this.guid, this.sourceAddr, this.sourceId, this.neededHits, ttl, this.queryString);
+    }
 }
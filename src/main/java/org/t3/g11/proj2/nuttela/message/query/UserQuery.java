@@ -15,6 +15,18 @@ public class UserQuery extends Query {
         this.latestDate = latestDate;
     }
 
+    public UserQuery(int guid, InetSocketAddress sourceAddr, int sourceId, int neededHits, int ttl, String queryString,
+                     long latestDate) {
+        super(guid, sourceAddr, sourceId, neededHits, ttl, queryString, QueryType.USER);
+        this.latestDate = latestDate;
+    }
+
+    @Override
+    public UserQuery withTtl(int ttl) {
+        return new UserQuery(this.guid, this.sourceAddr, this.sourceId, this.neededHits, ttl, this.queryString,
+                this.latestDate);
+    }
+
     public long getLatestDate() {
         return this.latestDate;
     }
@@ -11,7 +11,9 @@ import org.t3.g11.proj2.keyserver.KeyServerCMD;
 import org.t3.g11.proj2.keyserver.KeyServerReply;
 import org.t3.g11.proj2.keyserver.message.UnidentifiedMessage;
 import org.t3.g11.proj2.nuttela.GnuNode;
+import org.t3.g11.proj2.nuttela.GnuWorkers;
 import org.t3.g11.proj2.nuttela.message.Result;
+import org.t3.g11.proj2.nuttela.message.query.MultiUserQuery;
 import org.t3.g11.proj2.nuttela.message.query.Query;
 import org.t3.g11.proj2.nuttela.message.query.TagQuery;
 import org.t3.g11.proj2.nuttela.message.query.UserQuery;
@@ -45,6 +47,7 @@ public class Peer implements PeerObserver {
     private final ZMQ.Socket ksSocket;
     private final KeyHolder keyHolder;
     private HashMap<Integer, QueryTaskInteface> queryTasks = new HashMap<>();
+    private Integer lastFetchGuid = null; // fetchSubPosts' query in flight
 
     private PeerData peerData;
     private boolean authenticated;
@@ -107,16 +110,24 @@ public class Peer implements PeerObserver {
     }
 
     public void fetchSubPosts() {
+        // a single query for everyone we follow
+        Map<String, Long> users = new LinkedHashMap<>();
         for (String sub : this.getSubs()) {
             try {
-                // we're okay with 1
-                Query q = this.node.genQueryUser(1, sub, this.peerData.getLastUserPostDate(sub));
-                this.node.query(q);
+                users.put(sub, this.peerData.getLastUserPostDate(sub));
             } catch (Exception e) {
                 System.err.println("Problem getting info about user: " + sub);
                 e.printStackTrace();
             }
         }
+        // the previous round's query is superseded by this one
+        if (this.lastFetchGuid != null) this.node.cancel(this.lastFetchGuid);
+        this.lastFetchGuid = null;
+        if (!users.isEmpty()) {
+            Query q = this.node.genQueryMultiUser(users);
+            this.lastFetchGuid = q.getGuid();
+            this.node.query(q);
+        }
     }
 
     public Set<Result> search(String content) {
@@ -125,12 +136,13 @@ public class Peer implements PeerObserver {
         QueryTask task = new QueryTask(this.node, q);
         this.queryTasks.put(q.getGuid(), task);
         try {
-            Executors.newSingleThreadExecutor().execute(task);
+            this.node.getWorkers().execute(GnuWorkers.Activity.SEARCHES, task);
             task.get(5, TimeUnit.SECONDS);
         } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         } catch (TimeoutException e) {
             System.err.println("Timeout");
+            task.cancel(true); // stops waiting (and cancels the query)
         }
         this.queryTasks.replace(q.getGuid(), new QueryTaskMock());
 
@@ -328,10 +340,10 @@ public class Peer implements PeerObserver {
 
     public void unsubscribe(String username) throws Exception {
         if (this.peerData.getSelfUsername().equals(username)) throw new Exception("Can't subscribe to self.");
+        boolean subscribed = this.peerData.getSubs().contains(username);
         this.peerData.removeUser(username);
-        // update node bloom filter
-        this.node.buildBloom(this.peerData.getSubs());
-        this.node.addToBloom(this.peerData.getSelfUsername());
+        // update node bloom filter (only what subscribe added: the tags of our posts stay)
+        if (subscribed) this.node.removeFromBloom(username);
     }
 
     public Set<String> getSubs() {
@@ -432,10 +444,23 @@ public class Peer implements PeerObserver {
                 TagQuery tagQuery = (TagQuery) query;
                 return this.getTagResults(tagQuery.getQueryString());
             }
+            case MULTI_USER -> {
+                List<Result> results = new ArrayList<>();
+                for (Map.Entry<String, Long> user : ((MultiUserQuery) query).getUsers().entrySet())
+                    results.addAll(this.getUserResults(user.getKey(), user.getValue()));
+                return results;
+            }
         }
         return Collections.emptyList();
     }
 
+    @Override
+    public Set<String> getHeldUsers() {
+        Set<String> users = new HashSet<>(this.getSubs());
+        users.add(this.peerData.getSelfUsername());
+        return users;
+    }
+
     private static Set<String> tokenize(String input) {
         Set<String> ret = new HashSet<>();
 
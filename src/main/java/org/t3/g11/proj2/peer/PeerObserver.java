@@ -4,6 +4,7 @@ import org.t3.g11.proj2.nuttela.message.Result;
 import org.t3.g11.proj2.nuttela.message.query.Query;
 
 import java.util.List;
+import java.util.Set;
 
 public interface PeerObserver {
     void handleNewResults(int guid, List<Result> results);
@@ -13,4 +14,9 @@ public interface PeerObserver {
     List<Result> getTagResults(String queryString);
 
     List<Result> handleQuery(Query query);
+
+    /**
+     * Users we have posts of (ourselves and the ones we follow).
+     */
+    Set<String> getHeldUsers();
 }
@@ -46,6 +46,7 @@ class QueryTaskCallable implements Callable<Set<Result>> {
             this.lock.unlock();
         }
         this.isAlive.set(false);
+        this.node.cancel(this.query.getGuid()); // got enough or timed out: the rest of the network can stop
         return this.results;
     }
 
@@ -0,0 +1,71 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomBitsTest {
+    private static BloomFilter<String> filterOf(String... entries) {
+        BloomFilter<String> filter = GnuNodeInfo.newBloomFilter();
+        for (String entry : entries) filter.put(entry);
+        return filter;
+    }
+
+    @Test
+    void diffThenFlipGivesTheNewFilter() {
+        List<BloomFilter<String>> from = List.of(BloomBitsTest.filterOf("alice"));
+        List<BloomFilter<String>> to = List.of(BloomBitsTest.filterOf("bob", "cats"));
+        BloomBits.Snapshot fromSnapshot = BloomBits.snapshot(from);
+        BloomBits.Snapshot toSnapshot = BloomBits.snapshot(to);
+
+        int[] flipped = BloomBits.diff(fromSnapshot, toSnapshot);
+        assertTrue(flipped.length > 0);
+        for (int i = 1; i < flipped.length; ++i) assertTrue(flipped[i - 1] < flipped[i]);
+        assertTrue(BloomBits.worthSparse(flipped.length, toSnapshot));
+
+        assertEquals(to, BloomBits.flip(from, flipped));
+        assertEquals(0, BloomBits.diff(toSnapshot, toSnapshot).length);
+    }
+
+    @Test
+    void rejectsBitsOutOfRange() {
+        List<BloomFilter<String>> filters = List.of(BloomBitsTest.filterOf());
+        int bits = BloomBits.snapshot(filters).data().length * Long.SIZE;
+        assertThrows(IllegalArgumentException.class, () -> BloomBits.flip(filters, new int[]{bits}));
+        assertThrows(IllegalArgumentException.class, () -> BloomBits.flip(filters, new int[]{-1}));
+    }
+
+    @Test
+    void levelsRoundTrip() {
+        List<BloomFilter<String>> filters = List.of(BloomBitsTest.filterOf("alice"), BloomBitsTest.filterOf("bob", "cats"));
+        BloomBits.Snapshot snapshot = BloomBits.snapshot(filters);
+        assertEquals(2, snapshot.levels());
+
+        List<BloomFilter<String>> back = snapshot.toBloomFilters();
+        assertEquals(filters, back);
+        assertTrue(back.get(1).mightContain("cats"));
+    }
+
+    @Test
+    void levelsFlipTogether() {
+        List<BloomFilter<String>> from = List.of(BloomBitsTest.filterOf("alice"), BloomBitsTest.filterOf());
+        List<BloomFilter<String>> to = List.of(BloomBitsTest.filterOf("alice"), BloomBitsTest.filterOf("cats"));
+        int[] flipped = BloomBits.diff(BloomBits.snapshot(from), BloomBits.snapshot(to));
+        int levelBits = BloomBits.snapshot(List.of(BloomBitsTest.filterOf())).data().length * Long.SIZE;
+        for (int bit : flipped) assertTrue(bit >= levelBits); // only the second level changed
+        assertEquals(to, BloomBits.flip(from, flipped));
+    }
+
+    @Test
+    void rejectsMixedGeometries() {
+        BloomFilter<String> other = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), 5000, 0.01);
+        assertThrows(IllegalArgumentException.class,
+                () -> BloomBits.snapshot(List.of(GnuNodeInfo.newBloomFilter(), other)));
+        assertThrows(IllegalArgumentException.class, () -> BloomBits.snapshot(List.of()));
+    }
+}
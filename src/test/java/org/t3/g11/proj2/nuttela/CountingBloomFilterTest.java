@@ -0,0 +1,42 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountingBloomFilterTest {
+    @Test
+    void picksGuavaBits() {
+        BloomFilter<String> guava = GnuNodeInfo.newBloomFilter();
+        CountingBloomFilter counting = new CountingBloomFilter(GnuNodeInfo.newBloomFilter());
+        for (int i = 0; i < 200; ++i) {
+            guava.put("entry-" + i);
+            counting.add("entry-" + i);
+        }
+        assertEquals(guava, counting.toBloomFilter());
+        assertEquals(guava.expectedFpp(), counting.expectedFpp(), 1e-9);
+    }
+
+    @Test
+    void removes() {
+        CountingBloomFilter counting = new CountingBloomFilter(GnuNodeInfo.newBloomFilter());
+        assertTrue(counting.add("alice"));
+        counting.add("bob");
+        assertTrue(counting.remove("alice"));
+        assertFalse(counting.remove("carol")); // never added
+        assertTrue(counting.mightContain("bob"));
+        assertTrue(counting.remove("bob"));
+        assertTrue(counting.isEmpty());
+        assertEquals(GnuNodeInfo.newBloomFilter(), counting.toBloomFilter());
+    }
+
+    @Test
+    void sharedBitsStay() {
+        CountingBloomFilter counting = new CountingBloomFilter(GnuNodeInfo.newBloomFilter());
+        counting.add("alice");
+        assertFalse(counting.add("alice")); // the same bits: nothing changes
+        counting.remove("alice");
+        assertTrue(counting.mightContain("alice")); // still counted once
+    }
+}
@@ -0,0 +1,98 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GuidTableTest {
+    @Test
+    void remembersNeighbors() {
+        GuidTable table = new GuidTable(60000);
+        assertTrue(table.markSent(1, 10));
+        assertFalse(table.markSent(1, 10));
+        for (int neigh = 11; neigh < 30; ++neigh) // past the initial set size
+            assertTrue(table.markSent(1, neigh));
+        assertTrue(table.wasSent(1, 29));
+        assertFalse(table.wasSent(2, 10));
+
+        table.clearSent(1);
+        assertFalse(table.wasSent(1, 10));
+        assertTrue(table.markSent(1, 10));
+    }
+
+    @Test
+    void manyGuids() {
+        GuidTable table = new GuidTable(60000);
+        for (int guid = 0; guid < 10000; ++guid)
+            table.markSent(guid * 31, guid);
+        for (int guid = 0; guid < 10000; ++guid)
+            assertTrue(table.wasSent(guid * 31, guid));
+    }
+
+    @Test
+    void expiresWholeGenerations() throws InterruptedException {
+        long window = 60;
+        GuidTable table = new GuidTable(window);
+        table.markSent(1, 10);
+
+        // all generations rotate out after window + window / (GENERATIONS - 1)
+        Thread.sleep(window * 3);
+        assertFalse(table.wasSent(1, 10));
+    }
+
+    @Test
+    void touchedGuidsStay() throws InterruptedException {
+        long window = 60;
+        GuidTable table = new GuidTable(window);
+        table.markSent(1, 10);
+        long end = System.currentTimeMillis() + window * 3;
+        int neigh = 11;
+        while (System.currentTimeMillis() < end) {
+            table.markSent(1, neigh++); // moves it to the newest generation
+            Thread.sleep(window / 6);
+        }
+        assertTrue(table.wasSent(1, 10));
+    }
+
+    @Test
+    void remembersUpstream() {
+        GuidTable table = new GuidTable(60000);
+        assertNull(table.getUpstream(1));
+        table.setUpstream(1, 5);
+        table.setUpstream(1, 6); // the first one wins
+        assertEquals(5, table.getUpstream(1));
+
+        table.markSent(1, 10);
+        table.clearSent(1);
+        assertEquals(5, table.getUpstream(1));
+    }
+
+    @Test
+    void upstreamExpires() throws InterruptedException {
+        long window = 60;
+        GuidTable table = new GuidTable(window);
+        table.setUpstream(2, 20);
+        Thread.sleep(window * 3);
+        assertNull(table.getUpstream(2));
+    }
+
+    @Test
+    void cancelsOnce() {
+        GuidTable table = new GuidTable(60000);
+        assertFalse(table.isCancelled(7));
+        assertTrue(table.cancel(7));
+        assertFalse(table.cancel(7));
+        assertTrue(table.isCancelled(7));
+    }
+
+    @Test
+    void listsWhereItWent() {
+        GuidTable table = new GuidTable(60000);
+        assertEquals(0, table.getSent(1).length);
+        for (int neigh = 10; neigh < 30; ++neigh) table.markSent(1, neigh);
+        int[] sent = table.getSent(1);
+        assertEquals(20, sent.length);
+        assertEquals(10, sent[0]);
+        assertEquals(29, sent[19]);
+    }
+}
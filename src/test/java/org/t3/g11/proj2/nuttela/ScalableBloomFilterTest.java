@@ -0,0 +1,84 @@
+package org.t3.g11.proj2.nuttela;
+
+import com.google.common.hash.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScalableBloomFilterTest {
+    private static List<String> entries(int n) {
+        List<String> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) entries.add("entry-" + i);
+        return entries;
+    }
+
+    /**
+     * What a plain guava filter with the usual geometry gets from the same entries.
+     */
+    private static BloomFilter<String> guavaOf(List<String> entries) {
+        BloomFilter<String> filter = GnuNodeInfo.newBloomFilter();
+        for (String entry : entries) filter.put(entry);
+        return filter;
+    }
+
+    @Test
+    void foldingMatchesTheSmallerFilter() {
+        // (h % (s * m)) % m == h % m: a bigger filter folded gives the bits the smaller one would have
+        List<String> entries = ScalableBloomFilterTest.entries(300);
+        BloomFilter<String> guava = ScalableBloomFilterTest.guavaOf(entries);
+        for (int scale : new int[]{2, 4, 8}) {
+            CountingBloomFilter counting = new CountingBloomFilter(GnuNodeInfo.newBloomFilter(), scale);
+            for (String entry : entries) counting.add(entry);
+
+            BloomBits.Snapshot geometry = BloomBits.snapshot(List.of(GnuNodeInfo.newBloomFilter()));
+            long[] data = new long[geometry.data().length];
+            counting.foldInto(data);
+            BloomFilter<String> folded = BloomBits.fromLongs(geometry.strategy(), geometry.numHashFunctions(), data);
+            assertEquals(guava, folded, "scale " + scale);
+            for (String entry : entries) assertTrue(folded.mightContain(entry));
+        }
+    }
+
+    @Test
+    void growsAndMergesIntoOneFilter() {
+        List<String> entries = ScalableBloomFilterTest.entries(3000);
+        ScalableBloomFilter scalable = new ScalableBloomFilter(GnuNodeInfo.BLOOMMISSCHANCE);
+        for (String entry : entries) scalable.add(entry);
+        assertTrue(scalable.getSlices() > 1);
+
+        // neighbors get exactly what a guava filter with everything in it would be
+        assertEquals(ScalableBloomFilterTest.guavaOf(entries), scalable.toBloomFilter());
+        for (String entry : entries) assertTrue(scalable.mightContain(entry));
+    }
+
+    @Test
+    void removesEverything() {
+        List<String> entries = ScalableBloomFilterTest.entries(3000);
+        ScalableBloomFilter scalable = new ScalableBloomFilter(GnuNodeInfo.BLOOMMISSCHANCE);
+        for (String entry : entries) scalable.add(entry);
+        scalable.add("entry-0"); // added twice: taken out twice
+
+        for (String entry : entries) scalable.remove(entry);
+        assertTrue(scalable.mightContain("entry-0"));
+        scalable.remove("entry-0");
+
+        assertEquals(1, scalable.getSlices());
+        assertEquals(GnuNodeInfo.newBloomFilter(), scalable.toBloomFilter());
+    }
+
+    @Test
+    void saturatedViewIsNotRoutedOn() {
+        ScalableBloomFilter scalable = new ScalableBloomFilter(GnuNodeInfo.BLOOMMISSCHANCE);
+        for (String entry : ScalableBloomFilterTest.entries(3000)) scalable.add(entry);
+        BloomFilter<String> view = scalable.toBloomFilter();
+        assertTrue(GnuNodeInfo.isSaturated(view));
+
+        GnuNodeInfo nodeInfo = new GnuNodeInfo(1, 0, 1, new InetSocketAddress("127.0.0.1", 9100), view);
+        assertEquals(Integer.MAX_VALUE, nodeInfo.matchDepth("entry-7"));
+        assertTrue(nodeInfo.mightHold("entry-7")); // still asked if it's a leaf
+    }
+}
@@ -0,0 +1,152 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.junit.jupiter.api.Test;
+import org.t3.g11.proj2.nuttela.message.query.TagQuery;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SfqSchedulerTest {
+    private static final InetSocketAddress ADDR = new InetSocketAddress("127.0.0.1", 9100);
+
+    private static TagQuery query(int guid, int ttl) {
+        return new TagQuery(guid, SfqSchedulerTest.ADDR, 0, 1, ttl, "cats");
+    }
+
+    /**
+     * Takes (and completes) n queries: the flows they came from, in order.
+     */
+    private static List<Integer> drain(SfqScheduler scheduler, int n) throws InterruptedException {
+        List<Integer> flows = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            QueuedQuery queuedQuery = scheduler.take();
+            flows.add(queuedQuery.getHopId());
+            scheduler.complete(queuedQuery);
+        }
+        return flows;
+    }
+
+    @Test
+    void flowsTakeTurns() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(1, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        // a flooding neighbor doesn't get ahead of one that only sent a few
+        for (int i = 0; i < 6; ++i) assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(i, 5)));
+        for (int i = 0; i < 2; ++i) assertTrue(scheduler.enqueue(2, 1, SfqSchedulerTest.query(10 + i, 5)));
+        assertEquals(List.of(1, 2, 1, 2, 1, 1, 1, 1), SfqSchedulerTest.drain(scheduler, 8));
+    }
+
+    @Test
+    void weightsShareTheService() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(1, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        for (int i = 0; i < 4; ++i) scheduler.enqueue(1, 1, SfqSchedulerTest.query(i, 5));
+        for (int i = 0; i < 8; ++i) scheduler.enqueue(2, 2, SfqSchedulerTest.query(10 + i, 5));
+
+        List<Integer> flows = SfqSchedulerTest.drain(scheduler, 6);
+        assertEquals(2, flows.stream().filter(flow -> flow == 1).count());
+        assertEquals(4, flows.stream().filter(flow -> flow == 2).count());
+    }
+
+    @Test
+    void idleSchedulerCatchesUp() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(2, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        for (int i = 0; i < 4; ++i) scheduler.enqueue(1, 1, SfqSchedulerTest.query(i, 5));
+        SfqSchedulerTest.drain(scheduler, 4);
+
+        // a new flow starts at the virtual time, not at 0 ahead of the flow that was busy before
+        scheduler.enqueue(2, 1, SfqSchedulerTest.query(10, 5));
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(11, 5));
+        QueuedQuery first = scheduler.take();
+        QueuedQuery second = scheduler.take();
+        assertEquals(first.getStartTag(), second.getStartTag());
+    }
+
+    @Test
+    void dispatchesAtMostDepth() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(1, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(1, 5));
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(2, 5));
+        QueuedQuery first = scheduler.take();
+
+        Thread taker = new Thread(() -> {
+            try {
+                scheduler.take();
+            } catch (InterruptedException e) {
+                // done
+            }
+        });
+        taker.start();
+        taker.join(100);
+        assertTrue(taker.isAlive()); // waits for the slot
+        scheduler.complete(first);
+        taker.join(1000);
+        assertFalse(taker.isAlive());
+    }
+
+    @Test
+    void rejectsWhenFull() {
+        SfqScheduler scheduler = new SfqScheduler(1, 2, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(1, 5)));
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(2, 5)));
+        assertFalse(scheduler.enqueue(1, 1, SfqSchedulerTest.query(3, 5)));
+        assertTrue(scheduler.enqueue(2, 1, SfqSchedulerTest.query(4, 5))); // other flows aren't affected
+    }
+
+    @Test
+    void boundsBytes() {
+        TagQuery query = SfqSchedulerTest.query(1, 5);
+        SfqScheduler scheduler = new SfqScheduler(1, 16, query.getSize() * 2, SfqScheduler.ShedPolicy.REJECT);
+        assertTrue(scheduler.enqueue(1, 1, query));
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(2, 5)));
+        assertFalse(scheduler.enqueue(1, 1, SfqSchedulerTest.query(3, 5)));
+    }
+
+    @Test
+    void dropsOldest() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(1, 2, 1 << 20, SfqScheduler.ShedPolicy.DROP_OLDEST);
+        for (int i = 0; i < 4; ++i) assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(i, 5)));
+        assertEquals(2, scheduler.take().getQuery().getGuid());
+    }
+
+    @Test
+    void dropsLowestTtl() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(16, 2, 1 << 20, SfqScheduler.ShedPolicy.DROP_LOWEST_TTL);
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(1, 5)));
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(2, 2)));
+        assertFalse(scheduler.enqueue(1, 1, SfqSchedulerTest.query(3, 1))); // the new one has the least left
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(4, 7)));
+        assertEquals(1, scheduler.take().getQuery().getGuid());
+        assertEquals(4, scheduler.take().getQuery().getGuid());
+    }
+
+    @Test
+    void removesGoneFlows() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(16, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(1, 5));
+        scheduler.enqueue(2, 1, SfqSchedulerTest.query(2, 5));
+        scheduler.removeFlow(1);
+        assertEquals(2, scheduler.take().getQuery().getGuid());
+        assertTrue(scheduler.enqueue(1, 1, SfqSchedulerTest.query(3, 5))); // a new flow if it comes back
+        assertEquals(3, scheduler.take().getQuery().getGuid());
+    }
+
+    @Test
+    void removesCancelledQueries() throws InterruptedException {
+        SfqScheduler scheduler = new SfqScheduler(16, 16, 1 << 20, SfqScheduler.ShedPolicy.REJECT);
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(1, 5));
+        scheduler.enqueue(1, 1, SfqSchedulerTest.query(2, 5));
+        scheduler.enqueue(2, 1, SfqSchedulerTest.query(1, 5)); // the same query from another neighbor
+        scheduler.enqueue(2, 1, SfqSchedulerTest.query(3, 5));
+
+        scheduler.removeQuery(1);
+        QueuedQuery first = scheduler.take();
+        QueuedQuery second = scheduler.take();
+        assertEquals(5, first.getQuery().getGuid() + second.getQuery().getGuid()); // 2 and 3
+
+        // nothing else is left: the next query in is the next one out
+        scheduler.enqueue(4, 1, SfqSchedulerTest.query(5, 5));
+        assertEquals(5, scheduler.take().getQuery().getGuid());
+    }
+}
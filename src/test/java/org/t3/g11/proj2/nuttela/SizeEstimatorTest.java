@@ -0,0 +1,38 @@
+package org.t3.g11.proj2.nuttela;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SizeEstimatorTest {
+    private static void rounds(SizeEstimator estimator, int n) {
+        for (int i = 0; i < n; ++i) estimator.tick();
+    }
+
+    @Test
+    void settlesAfterAWholeEpoch() {
+        SizeEstimator estimator = new SizeEstimator();
+        SizeEstimatorTest.rounds(estimator, SizeEstimator.EPOCH_ROUNDS); // the one we started in
+        assertFalse(estimator.isSettled());
+        SizeEstimatorTest.rounds(estimator, SizeEstimator.EPOCH_ROUNDS);
+        assertTrue(estimator.isSettled());
+    }
+
+    @Test
+    void joiningAnEpochIsNotGoingThroughIt() {
+        SizeEstimator estimator = new SizeEstimator();
+        estimator.merge(5, new SizeEstimator().getMins());
+        assertEquals(5, estimator.getEpoch());
+        assertFalse(estimator.isSettled());
+    }
+
+    @Test
+    void estimatesTheNodesThatGossiped() {
+        // everyone's minimums spread: whoever has them all estimates the whole overlay
+        int nodes = 400;
+        SizeEstimator estimator = new SizeEstimator();
+        for (int i = 1; i < nodes; ++i) estimator.merge(0, new SizeEstimator().getMins());
+        double estimate = estimator.estimate();
+        assertTrue(estimate > nodes / 3.0 && estimate < nodes * 3.0, "estimate " + estimate);
+    }
+}
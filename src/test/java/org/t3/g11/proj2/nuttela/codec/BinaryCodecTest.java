@@ -0,0 +1,141 @@
+package org.t3.g11.proj2.nuttela.codec;
+
+import org.junit.jupiter.api.Test;
+import org.t3.g11.proj2.nuttela.GnuNodeCMD;
+import org.t3.g11.proj2.nuttela.message.CancelMessage;
+import org.t3.g11.proj2.nuttela.message.GnuMessage;
+import org.t3.g11.proj2.nuttela.message.PingMessage;
+import org.t3.g11.proj2.nuttela.message.QueryHitMessage;
+import org.t3.g11.proj2.nuttela.message.QueryMessage;
+import org.t3.g11.proj2.nuttela.message.Result;
+import org.t3.g11.proj2.nuttela.message.query.MultiUserQuery;
+import org.t3.g11.proj2.nuttela.message.query.UserQuery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+    private static final InetSocketAddress ADDR = new InetSocketAddress("127.0.0.1", 9100);
+
+    private static GnuMessage roundTrip(GnuMessage msg) throws IOException {
+        byte[] payload = BinaryCodec.INSTANCE.encode(msg);
+        return BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(payload));
+    }
+
+    @Test
+    void pingRoundTrip() throws IOException {
+        PingMessage ping = new PingMessage(BinaryCodecTest.ADDR, 7);
+        ping.setReqId(17);
+        PingMessage decoded = (PingMessage) BinaryCodecTest.roundTrip(ping);
+        assertEquals(GnuNodeCMD.PING, decoded.getCmd());
+        assertEquals(BinaryCodecTest.ADDR, decoded.getAddr());
+        assertEquals(17, decoded.getReqId());
+        assertEquals(7, decoded.getBloomVersion());
+    }
+
+    @Test
+    void queryRoundTrip() throws IOException {
+        UserQuery query = new UserQuery(BinaryCodecTest.ADDR, 3, 2, 5, "alice", 123456789L);
+        QueryMessage decoded = (QueryMessage) BinaryCodecTest.roundTrip(new QueryMessage(BinaryCodecTest.ADDR, 12, query));
+        UserQuery got = (UserQuery) decoded.getQuery();
+        assertEquals(query.getGuid(), got.getGuid());
+        assertEquals(query.getSourceSocketAddr(), got.getSourceSocketAddr());
+        assertEquals(3, got.getSourceId());
+        assertEquals(2, got.getNeededHits());
+        assertEquals(5, got.getTtl());
+        assertEquals("alice", got.getQueryString());
+        assertEquals(123456789L, got.getLatestDate());
+    }
+
+    @Test
+    void queryHitRoundTrip() throws IOException {
+        List<Result> results = List.of(new Result(1, 2, "ciph", "alice"), new Result(-3, 4, "ç", "bob"));
+        QueryHitMessage decoded = (QueryHitMessage) BinaryCodecTest.roundTrip(
+                new QueryHitMessage(BinaryCodecTest.ADDR, 99, results));
+        assertEquals(99, decoded.getGuid());
+        assertEquals(results.size(), decoded.getResultSet().size());
+        for (int i = 0; i < results.size(); ++i) {
+            Result sent = results.get(i);
+            Result got = decoded.getResultSet().get(i);
+            assertEquals(sent.guid, got.guid);
+            assertEquals(sent.toString(), got.toString());
+        }
+    }
+
+    @Test
+    void rejectsTruncatedFrames() throws IOException {
+        byte[] payload = BinaryCodec.INSTANCE.encode(new QueryHitMessage(BinaryCodecTest.ADDR, 99,
+                List.of(new Result(1, 2, "ciph", "alice"))));
+        for (int len = 0; len < payload.length; ++len) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(payload, len));
+            assertThrows(IOException.class, () -> BinaryCodec.INSTANCE.decode(truncated), "length " + len);
+        }
+    }
+
+    @Test
+    void rejectsTrailingBytes() throws IOException {
+        byte[] payload = BinaryCodec.INSTANCE.encode(new PingMessage(BinaryCodecTest.ADDR, 7));
+        ByteBuffer longer = ByteBuffer.wrap(Arrays.copyOf(payload, payload.length + 1));
+        assertThrows(IOException.class, () -> BinaryCodec.INSTANCE.decode(longer));
+    }
+
+    @Test
+    void rejectsOversizedFrames() throws IOException {
+        GnuFrames.checkFrameLength(GnuFrames.MAX_FRAME);
+        assertThrows(IOException.class, () -> GnuFrames.checkFrameLength(GnuFrames.MAX_FRAME + 1));
+        assertThrows(IOException.class, () -> GnuFrames.checkFrameLength(0));
+
+        // the length is checked before anything is read or allocated
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        GnuFrames.writePreamble(out, BinaryCodec.INSTANCE);
+        out.writeInt(GnuFrames.MAX_FRAME + 1);
+        GnuFrames frames = GnuFrames.open(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertThrows(IOException.class, frames::readFrame);
+    }
+
+    @Test
+    void framesRoundTrip() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        GnuFrames.writePreamble(out, BinaryCodec.INSTANCE);
+        GnuFrames.writeFrame(out, BinaryCodec.INSTANCE, new PingMessage(BinaryCodecTest.ADDR, 1));
+        GnuFrames.writeFrame(out, BinaryCodec.INSTANCE, new PingMessage(BinaryCodecTest.ADDR, 2));
+
+        GnuFrames frames = GnuFrames.open(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertSame(BinaryCodec.INSTANCE, frames.getCodec());
+        assertEquals(1, ((PingMessage) frames.readFrame()).getBloomVersion());
+        assertEquals(2, ((PingMessage) frames.readFrame()).getBloomVersion());
+    }
+
+    @Test
+    void multiUserQueryRoundTrip() throws IOException {
+        Map<String, Long> users = new LinkedHashMap<>();
+        users.put("alice", 15L);
+        users.put("bob", -1L);
+        MultiUserQuery query = new MultiUserQuery(BinaryCodecTest.ADDR, 3, users);
+        QueryMessage decoded = (QueryMessage) BinaryCodecTest.roundTrip(new QueryMessage(BinaryCodecTest.ADDR, 12, query));
+        MultiUserQuery got = (MultiUserQuery) decoded.getQuery();
+        assertEquals(users, got.getUsers());
+        assertEquals(users.size(), got.getNeededHits());
+        assertEquals(query.getGuid(), got.getGuid());
+    }
+
+    @Test
+    void cancelRoundTrip() throws IOException {
+        CancelMessage decoded = (CancelMessage) BinaryCodecTest.roundTrip(new CancelMessage(BinaryCodecTest.ADDR, 9, 42));
+        assertEquals(GnuNodeCMD.CANCEL, decoded.getCmd());
+        assertEquals(42, decoded.getGuid());
+    }
+}